@@ -3,27 +3,46 @@ package ru.mai.dep806.bigdata.mr;
 import org.apache.commons.lang.StringUtils;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.conf.Configured;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.*;
+import org.apache.hadoop.io.compress.BZip2Codec;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.DefaultCodec;
+import org.apache.hadoop.io.compress.DeflateCodec;
+import org.apache.hadoop.mapreduce.Counters;
 import org.apache.hadoop.mapreduce.Job;
 import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.Partitioner;
 import org.apache.hadoop.mapreduce.Reducer;
+import org.apache.hadoop.mapreduce.TaskCounter;
+import org.apache.hadoop.mapreduce.TaskInputOutputContext;
 import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
 import org.apache.hadoop.mapreduce.lib.input.MultipleInputs;
 import org.apache.hadoop.mapreduce.lib.input.SequenceFileInputFormat;
 import org.apache.hadoop.mapreduce.lib.input.TextInputFormat;
 import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.LazyOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.MultipleOutputs;
 import org.apache.hadoop.mapreduce.lib.output.SequenceFileOutputFormat;
+import org.apache.hadoop.util.ReflectionUtils;
 import org.apache.hadoop.util.Tool;
 import org.apache.hadoop.util.ToolRunner;
 
 import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.stream.Stream;
 
 import static ru.mai.dep806.bigdata.mr.SequenceFileUtils.toSequenceString;
@@ -105,58 +124,514 @@ import static ru.mai.dep806.bigdata.mr.SequenceFileUtils.toSequenceString;
  * hadoop jar fastest_answerers-1.0-SNAPSHOT.jar ru.mai.dep806.bigdata.mr.FastestAnswerers /user/stud/stackoverflow/landing/Posts /user/stud/stackoverflow/landing/Users <output_path> <run_filters> <run_join> <run_aggregation> <run_aggregate_user_join> <run_top_N> <top_N>
  * где <run_*> должны быть true или false. Каждый такой аргумент указывает программе нужно ли запускать соответствующую стадию обработки, или использовать данные с прошлых запусков.
  * <top_N> -- число быстрейших "отвечателей", которое необходимо вывести
+ *
+ * Дополнительные параметры передаются через -D:
+ * -DrankingPercentile=<0..1> -- строить рейтинг не по среднему времени ответа, а по заданному перцентилю (например 0.5 -- медиана)
+ * -DanswersThreshold=<N> -- в рейтинг попадают пользователи, правильно ответившие более чем на N вопросов (по умолчанию 3, как в HAVING count(*) > 3)
+ * -DselfAnswerMinSeconds=<N>, -DotherAnswerMinSeconds=<N> -- минимальное время ответа на свой и на чужой вопрос (по умолчанию 60 * 60 и 60 * 5)
+ * -DcheatFilterSettings=<self>:<other>:<threshold>,... -- режим перебора параметров: список наборов параметров фильтра "накруток"
+ *     и порога числа ответов, все наборы считаются за один запуск. Первый набор -- основной (результат в <output_path>),
+ *     для i-го набора (нумерация с 0) результат записывается в <output_path>_setting_<i>. Соединение с Users и построение
+ *     топов выполняются одной задачей для всех наборов
+ * -DtagsTopN=<N> -- дополнительно построить топ N пользователей для каждого тега вопросов (в <output_path>_by_tag)
+ * -DyearsTopN=<N> -- дополнительно построить топ N пользователей за каждый год создания вопроса (в <output_path>_by_year)
+ * -DmonthsTopN=<N> -- дополнительно построить топ N пользователей за каждый месяц создания вопроса (в <output_path>_by_month)
+ * -DtagsAnswersThreshold, -DyearsAnswersThreshold, -DmonthsAnswersThreshold -- аналоги answersThreshold для соответствующих разрезов
+ * -DsampleRate=<0..1> -- режим быстрой оценки: обрабатывается только заданная доля вопросов (и ответов на них), выбранная
+ *     детерминированно по хэшу id вопроса. Порог числа ответов применяется к оценке полного числа ответов, а для среднего
+ *     времени ответа дополнительно выводится полуширина 95% доверительного интервала
+ * -DsampleMinAnswers=<N> -- в режиме быстрой оценки в рейтинг попадают только пользователи, у которых в выборке не меньше
+ *     N ответов (по умолчанию 2, меньше 2 нельзя -- иначе доверительный интервал не определен)
+ * -DindexPath=<path> -- выгрузить рейтинг всех пользователей, прошедших порог числа ответов, в бинарный индекс для
+ *     отображения в память (см. RankingIndex), например -DindexPath=file:///data/fastest_answerers.idx
+ * -DpostsQueries=<class>,... -- дополнительные запросы-фильтры над Posts.xml (реализации PostsQuery), которые выполняются
+ *     тем же проходом по Posts.xml, что и отбор вопросов и ответов; результат запроса записывается в <output_path>_<имя запроса>
+ * -DmapThreads=<N> -- число потоков, в которых разбираются строки xml в мапперах Posts и Users (по умолчанию 1)
+ * -DmapBatchSize=<N> -- сколько строк читается и раздается потокам за раз при mapThreads > 1 (по умолчанию 1000)
+ * -DsmallStageMaxBytes=<N> -- стадии, суммарный размер входа которых не превышает N байт, выполняются без контейнеров
+ *     YARN (по умолчанию 0 -- все стадии выполняются обычным образом)
+ * -DsmallStageMode=local|uber -- как выполнять такие стадии: local -- прямо в процессе драйвера (по умолчанию),
+ *     uber -- одной uber-задачей в контейнере ApplicationMaster (только для стадий не более чем с одним редюсером,
+ *     остальные маленькие стадии выполняются локально)
+ * -DmapOutputCodec=<codec> -- сжатие промежуточных данных между map и reduce всех стадий
+ * -DstagingCodec=<codec> -- сжатие промежуточных результатов стадий (блочно сжатые SequenceFile); итоговые результаты не сжимаются
+ *     (в том числе результаты postsQueries, поэтому при заданных postsQueries выход стадии filter не сжимается)
+ * -DmapOutputCodec.<stage>=<codec>, -DstagingCodec.<stage>=<codec> -- то же для отдельной стадии, где <stage> -- одно из
+ *     filter, join, aggregation, usersJoin, topN, topNPerGroup
+ *     <codec> -- none (по умолчанию), default, deflate или bzip2: только кодеки Hadoop, не требующие нативных библиотек
+ * -DjoinBufferBytes=<N> -- бюджет памяти на каждую сторону соединения в редюсерах соединения (по умолчанию 32 МБ),
+ *     строки ключа сверх бюджета сбрасываются на локальный диск задачи
+ * -DreportPath=<path> -- куда записывать отчет о стадиях (по умолчанию <output_path>_report): для каждой стадии
+ *     отдельный файл с размерами данных между map и reduce до и после сжатия и размером результата стадии, а в файле
+ *     sketches -- оценки числа различных отвечавших, различных задавших вопрос и различных отвечавших за каждый месяц
+ * -Dinstrumentation=true -- профилирование записей (см. RecordProfiler): гистограммы времени обработки и размера
+ *     записей в мапперах и редюсерах разбора и соединения в счетчиках, перцентили по ним в отчете стадии и
+ *     slowRowsCount (-DslowRowsCount, по умолчанию 20) самых медленных записей в <reportPath>/<стадия>_slow_rows
+ * -DsketchPrecision=<4..18> -- точность скетчей HyperLogLog (по умолчанию 14: 16 КБ на скетч, ошибка около 0.8%)
  */
 
 public class FastestAnswerers extends Configured implements Tool {
-    private static final String[] postsFields = new String[] {
+    static final String[] postsFields = new String[] {
             "Id", "PostTypeId", "AcceptedAnswerId", "ParentId" , "CreationDate", "DeletionDate",
             "Score", "ViewCount", "Body" , "OwnerUserId", "OwnerDisplayName", "LastEditorUserId",
             "LastEditorDisplayName", "LastEditDate", "LastActivityDate", "Title", "Tags", "AnswerCount",
             "CommentCount", "FavoriteCount", "ClosedDate", "CommunityOwnedDate"
     };
 
-    // Базовый класс-маппер для фильтрации постов из файла Posts.xml по некоторому условию
-    abstract static class PostsFilterMapper extends Mapper<Object, Text, NullWritable, Text> {
-        protected abstract boolean condition(Map<String, String> row);
+    // Имя параметра конфигурации с долей вопросов, которые попадают в выборку в режиме быстрой оценки (по умолчанию 1 -- все)
+    static final String SAMPLE_RATE = "sampleRate";
+
+    // функция для получения доли вопросов в выборке
+    static double getSampleRate(Configuration conf) {
+        double sampleRate = conf.getDouble(SAMPLE_RATE, 1.0);
+        if (sampleRate <= 0 || sampleRate > 1) {
+            throw new IllegalArgumentException(SAMPLE_RATE + " must be in (0, 1]: " + sampleRate);
+        }
+        return sampleRate;
+    }
+
+    // Имя параметра конфигурации с минимальным числом ответов пользователя в выборке в режиме быстрой оценки. Без него
+    // один попавший в выборку ответ при доле 0.1 дает оценку в 10 ответов и проходит порог, и топ состоит из пользователей
+    // со случайно быстрым единственным ответом и неопределенным доверительным интервалом
+    static final String SAMPLE_MIN_ANSWERS = "sampleMinAnswers";
+
+    // функция для получения минимального числа ответов пользователя в выборке (1 -- без ограничения, если выборки нет)
+    static int getSampleMinAnswers(Configuration conf) {
+        if (getSampleRate(conf) >= 1) {
+            return 1;
+        }
+        int sampleMinAnswers = conf.getInt(SAMPLE_MIN_ANSWERS, 2);
+        if (sampleMinAnswers < 2) {
+            throw new IllegalArgumentException(SAMPLE_MIN_ANSWERS + " must be at least 2: " + sampleMinAnswers);
+        }
+        return sampleMinAnswers;
+    }
+
+    // Функция, определяющая, попадает ли вопрос с заданным id в выборку. Решение зависит только от id, поэтому вопрос
+    // и ответы на него (по ParentId) попадают или не попадают в выборку вместе, и повторный запуск дает ту же выборку.
+    static boolean isSampled(String questionId, double sampleRate) {
+        if (sampleRate >= 1) {
+            return true;
+        }
+        if (StringUtils.isBlank(questionId)) {
+            return false;
+        }
+
+        // перемешивание битов id (финализатор SplitMix64), чтобы соседние id не попадали в выборку группами
+        long hash = Long.parseLong(questionId);
+        hash = (hash ^ (hash >>> 30)) * 0xbf58476d1ce4e5b9L;
+        hash = (hash ^ (hash >>> 27)) * 0x94d049bb133111ebL;
+        hash = hash ^ (hash >>> 31);
+
+        // старшие 53 бита -- равномерно распределенное число из [0, 1)
+        return (hash >>> 11) * 0x1.0p-53 < sampleRate;
+    }
+
+    static final String MAP_THREADS = "mapThreads";
+    static final String MAP_BATCH_SIZE = "mapBatchSize";
+
+    // Базовый класс-маппер для задач, в которых основное время уходит на разбор строк (xml). Обработка строки разделена
+    // на две части: transform -- разбор и подготовка результата, который может выполняться параллельно в нескольких потоках,
+    // и emit -- запись результата, которая всегда выполняется в основном потоке задачи в порядке строк входного файла.
+    // При mapThreads > 1 строки читаются пачками по mapBatchSize, пачка делится между потоками пула, а пока потоки
+    // разбирают текущую пачку, основной поток читает следующую. Так одна задача (и одна JVM) загружает несколько ядер.
+    // Метод transform не должен менять поля маппера: все изменяемое состояние -- локальное или ThreadLocal.
+    // При включенном профилировании (см. RecordProfiler) в однопоточном режиме замеряется весь вызов map,
+    // в многопоточном -- разбор строки (transform) в потоке пула.
+    abstract static class ParallelTextMapper<R, KEYOUT, VALUEOUT> extends Mapper<Object, Text, KEYOUT, VALUEOUT> {
+
+        private RecordProfiler profiler;
+
+        // разбор строки; null -- строка ничего не дает на выход
+        protected abstract R transform(Text value) throws IOException;
+
+        // запись результата разбора строки
+        protected abstract void emit(R result, Context context) throws IOException, InterruptedException;
+
+        // id строки для списка самых медленных строк (вызывается только для них)
+        protected String getRowId(Text value) {
+            return XmlUtils.parseXmlRow(value.toString()).get("Id");
+        }
+
+        @Override
+        protected void map(Object key, Text value, Context context) throws IOException, InterruptedException {
+            long start = profiler.start();
+            R result = transform(value);
+            if (result != null) {
+                emit(result, context);
+            }
+            profiler.record(start, value.getLength(), () -> getRowId(value));
+        }
+
+        @Override
+        public void run(Context context) throws IOException, InterruptedException {
+            profiler = new RecordProfiler(context.getConfiguration(), getClass().getSimpleName());
+
+            int threads = context.getConfiguration().getInt(MAP_THREADS, 1);
+            if (threads <= 1) {
+                setup(context);
+                try {
+                    while (context.nextKeyValue()) {
+                        map(context.getCurrentKey(), context.getCurrentValue(), context);
+                    }
+                } finally {
+                    cleanup(context);
+                }
+                profiler.close(context);
+                return;
+            }
+
+            int batchSize = context.getConfiguration().getInt(MAP_BATCH_SIZE, 1000);
+            ExecutorService executor = Executors.newFixedThreadPool(threads);
+
+            setup(context);
+            try {
+                List<Future<TransformedChunk<R>>> pending = submit(executor, readBatch(context, batchSize), threads);
+                while (!pending.isEmpty()) {
+                    // следующая пачка читается, пока потоки разбирают текущую
+                    List<Text> nextBatch = readBatch(context, batchSize);
+
+                    for (Future<TransformedChunk<R>> future : pending) {
+                        TransformedChunk<R> chunk = get(future);
+                        for (int i = 0; i < chunk.values.size(); ++i) {
+                            Text value = chunk.values.get(i);
+                            profiler.recordDuration(chunk.nanos[i], value.getLength(), () -> getRowId(value));
+
+                            R result = chunk.results.get(i);
+                            if (result != null) {
+                                emit(result, context);
+                            }
+                        }
+                    }
+
+                    pending = submit(executor, nextBatch, threads);
+                }
+            } finally {
+                executor.shutdownNow();
+                cleanup(context);
+            }
+            profiler.close(context);
+        }
+
+        // Кусок пачки, разобранный одним потоком: строки, результаты их разбора и время разбора каждой строки
+        private static class TransformedChunk<R> {
+            final List<Text> values;
+            final List<R> results;
+            final long[] nanos;
+
+            TransformedChunk(List<Text> values) {
+                this.values = values;
+                this.results = new ArrayList<>(values.size());
+                this.nanos = new long[values.size()];
+            }
+        }
+
+        private List<Text> readBatch(Context context, int batchSize) throws IOException, InterruptedException {
+            List<Text> batch = new ArrayList<>(batchSize);
+            while (batch.size() < batchSize && context.nextKeyValue()) {
+                // объект значения переиспользуется при чтении, поэтому копируем
+                batch.add(new Text(context.getCurrentValue()));
+            }
+            return batch;
+        }
+
+        // делит пачку на непрерывные куски по числу потоков, результаты кусков возвращаются в исходном порядке
+        private List<Future<TransformedChunk<R>>> submit(ExecutorService executor, List<Text> batch, int threads) {
+            List<Future<TransformedChunk<R>>> futures = new ArrayList<>();
+            boolean profile = profiler.isEnabled();
+            int chunkSize = (batch.size() + threads - 1) / threads;
+            for (int from = 0; from < batch.size(); from += chunkSize) {
+                TransformedChunk<R> chunk = new TransformedChunk<>(batch.subList(from, Math.min(from + chunkSize, batch.size())));
+                futures.add(executor.submit(() -> {
+                    for (int i = 0; i < chunk.values.size(); ++i) {
+                        long start = profile ? System.nanoTime() : 0;
+                        chunk.results.add(transform(chunk.values.get(i)));
+                        if (profile) {
+                            chunk.nanos[i] = System.nanoTime() - start;
+                        }
+                    }
+                    return chunk;
+                }));
+            }
+            return futures;
+        }
+
+        private static <T> T get(Future<T> future) throws IOException, InterruptedException {
+            try {
+                return future.get();
+            } catch (ExecutionException ex) {
+                throw new IOException("Parallel map failed", ex.getCause());
+            }
+        }
+    }
+
+    // Имя параметра конфигурации со списком классов запросов (PostsQuery), выполняемых маппером PostsFilterMapper
+    static final String POSTS_QUERIES = "postsQueries";
+
+    // Класс-маппер для фильтрации постов из файла Posts.xml сразу по нескольким запросам (см. PostsQuery) за один проход:
+    // каждая строка разбирается один раз, а строки, отобранные каждым запросом, пишутся в поддиректорию с именем запроса.
+    // В режиме быстрой оценки дополнительно отбрасывает посты, вопрос которых не попал в выборку (см. isSampled).
+    // Результат разбора строки -- массив строк для записи, по одной на запрос (null -- строка не попала в запрос).
+    // При mapThreads > 1 строки разбираются в нескольких потоках, поэтому у каждого потока свои экземпляры запросов:
+    // запросы могут хранить состояние (например, SimpleDateFormat), и не обязаны быть потокобезопасными.
+    static class PostsFilterMapper extends ParallelTextMapper<String[], NullWritable, Text> {
         private final Text outValue = new Text();
+        private double sampleRate;
+        private String[] queryNames;
+        private ThreadLocal<List<PostsQuery>> queries;
+        private MultipleOutputs<NullWritable, Text> multipleOutputs;
 
-        public void map(Object key, Text value, Mapper.Context context)
-                throws IOException, InterruptedException {
+        @Override
+        protected void setup(Context context) {
+            Configuration conf = context.getConfiguration();
+            sampleRate = getSampleRate(conf);
+
+            Class<?>[] queryClasses = conf.getClasses(POSTS_QUERIES);
+            queries = ThreadLocal.withInitial(() -> {
+                List<PostsQuery> threadQueries = new ArrayList<>();
+                for (Class<?> queryClass : queryClasses) {
+                    threadQueries.add((PostsQuery) ReflectionUtils.newInstance(queryClass, conf));
+                }
+                return threadQueries;
+            });
+
+            queryNames = new String[queryClasses.length];
+            for (int i = 0; i < queryNames.length; ++i) {
+                queryNames[i] = queries.get().get(i).getName();
+            }
+
+            multipleOutputs = new MultipleOutputs<>(context);
+        }
+
+        @Override
+        protected void cleanup(Context context) throws IOException, InterruptedException {
+            multipleOutputs.close();
+        }
 
+        @Override
+        protected String[] transform(Text value) {
             Map<String, String> row = XmlUtils.parseXmlRow(value.toString());
 
-            if (condition(row)) {
-                outValue.set(SequenceFileUtils.toSequenceString(row, postsFields));
-                context.write(NullWritable.get(), outValue);
+            List<PostsQuery> threadQueries = queries.get();
+            String[] result = null;
+            for (int i = 0; i < threadQueries.size(); ++i) {
+                PostsQuery query = threadQueries.get(i);
+                if (query.condition(row) && isSampled(query.getSampleKey(row), sampleRate)) {
+                    if (result == null) {
+                        result = new String[threadQueries.size()];
+                    }
+                    result[i] = SequenceFileUtils.toSequenceString(row, query.getFieldNames());
+                }
+            }
+            return result;
+        }
+
+        @Override
+        protected void emit(String[] result, Context context) throws IOException, InterruptedException {
+            for (int i = 0; i < result.length; ++i) {
+                if (result[i] != null) {
+                    outValue.set(result[i]);
+                    multipleOutputs.write(NullWritable.get(), outValue, queryNames[i] + "/part");
+                }
             }
         }
     }
 
-    // Специализация базового класса-маппера для фильтрации вопросов из всех постов
-    private static class QuestionsMapper extends PostsFilterMapper {
+    // Запрос для отбора вопросов из всех постов
+    public static class QuestionsQuery implements PostsQuery {
+        @Override
+        public String getName() {
+            return "questions";
+        }
+
         @Override
-        protected boolean condition(Map<String, String> row) {
+        public boolean condition(Map<String, String> row) {
             return "1".equals(row.get("PostTypeId"));
         }
+
+        @Override
+        public String[] getFieldNames() {
+            return postsFields;
+        }
     }
 
-    // Специализация базового класса-маппера для фильтрации ответов из всех постов
-    private static class AnswersMapper extends PostsFilterMapper {
+    // Запрос для отбора ответов из всех постов
+    public static class AnswersQuery implements PostsQuery {
+        @Override
+        public String getName() {
+            return "answers";
+        }
+
         @Override
-        protected boolean condition(Map<String, String> row) {
+        public boolean condition(Map<String, String> row) {
             return "2".equals(row.get("PostTypeId"));
         }
+
+        @Override
+        public String[] getFieldNames() {
+            return postsFields;
+        }
+
+        // ответ попадает в выборку вместе со своим вопросом, поэтому правильный ответ, на который указывает
+        // AcceptedAnswerId вопроса из выборки, тоже всегда в выборке
+        @Override
+        public String getSampleKey(Map<String, String> row) {
+            return row.get("ParentId");
+        }
+    }
+
+    // Формат дат в дампе. SimpleDateFormat не потокобезопасен, поэтому у каждого потока свой экземпляр
+    // (маппер может выполняться в несколько потоков, см. ParallelTextMapper)
+    private static final ThreadLocal<SimpleDateFormat> dateFormat = ThreadLocal.withInitial(() -> {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS");
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        return format;
+    });
+
+    // функция для разбора даты из дампа
+    static Date parseDate(String value) throws ParseException {
+        return dateFormat.get().parse(value);
     }
 
     // Функция для рассчета разницы между моментами времени в секундах. По-хорошему должна работать как unix_timestamp(d2) - unix_timestamp(d1) в HIVE,
     // но по факту иногда отличается на 1, что в свою очередь приводит к разному среднему времени ответа, из-за чего в финальном топе "отвечателей"
     // результаты MapReduce несколько отличаются от HIVE'овских (в основном меняется порядок пользователей в топе в топе)
-    private static long getTimeDifferenceInSeconds(Date d1, Date d2){
+    static long getTimeDifferenceInSeconds(Date d1, Date d2){
         return (d2.getTime() - d1.getTime()) / 1000;
     }
 
+    // Набор параметров фильтра "накруток" и порога числа ответов (аналог HAVING count(*) > 3).
+    // Ответ считается честным, если пользователь отвечает не на свой вопрос более чем через otherAnswerMinSeconds секунд
+    // либо на свой вопрос более чем через selfAnswerMinSeconds секунд.
+    static class CheatFilterSetting {
+        // Имя параметра конфигурации со списком наборов параметров для режима перебора параметров
+        static final String CHEAT_FILTER_SETTINGS = "cheatFilterSettings";
+        static final String SELF_ANSWER_MIN_SECONDS = "selfAnswerMinSeconds";
+        static final String OTHER_ANSWER_MIN_SECONDS = "otherAnswerMinSeconds";
+
+        // наборы параметров передаются через битовую маску, поэтому их не может быть больше 64
+        static final int MAX_SETTINGS = 64;
+
+        private final long selfAnswerMinSeconds;
+        private final long otherAnswerMinSeconds;
+        private final int answersThreshold;
+
+        CheatFilterSetting(long selfAnswerMinSeconds, long otherAnswerMinSeconds, int answersThreshold) {
+            this.selfAnswerMinSeconds = selfAnswerMinSeconds;
+            this.otherAnswerMinSeconds = otherAnswerMinSeconds;
+            this.answersThreshold = answersThreshold;
+        }
+
+        boolean accepts(boolean selfAnswer, long seconds) {
+            return selfAnswer ? seconds > selfAnswerMinSeconds : seconds > otherAnswerMinSeconds;
+        }
+
+        int getAnswersThreshold() {
+            return answersThreshold;
+        }
+
+        @Override
+        public String toString() {
+            return "self answer > " + selfAnswerMinSeconds + " s, other answer > " + otherAnswerMinSeconds + " s, answers > " + answersThreshold;
+        }
+
+        // Функция для получения наборов параметров из конфигурации. Если список cheatFilterSettings не задан,
+        // возвращает единственный набор из отдельных параметров (по умолчанию -- как в запросе HIVE)
+        static List<CheatFilterSetting> fromConfiguration(Configuration conf) {
+            List<CheatFilterSetting> settings = new ArrayList<>();
+
+            String[] values = conf.getTrimmedStrings(CHEAT_FILTER_SETTINGS);
+            if (values.length == 0) {
+                settings.add(new CheatFilterSetting(
+                        conf.getLong(SELF_ANSWER_MIN_SECONDS, 60 * 60),
+                        conf.getLong(OTHER_ANSWER_MIN_SECONDS, 60 * 5),
+                        Grouping.User.getAnswersThreshold(conf)));
+                return settings;
+            }
+
+            for (String value : values) {
+                String[] parts = value.split(":");
+                if (parts.length != 3) {
+                    throw new IllegalArgumentException("Cheat filter setting must be <self>:<other>:<threshold>: " + value);
+                }
+                settings.add(new CheatFilterSetting(Long.parseLong(parts[0]), Long.parseLong(parts[1]), Integer.parseInt(parts[2])));
+            }
+
+            if (settings.size() > MAX_SETTINGS) {
+                throw new IllegalArgumentException("Too many cheat filter settings: " + settings.size() + " > " + MAX_SETTINGS);
+            }
+            return settings;
+        }
+    }
+
+    // Ключ соединения -- id поста или пользователя. Сериализуется числом переменной длины (для id до нескольких миллионов --
+    // 3-4 байта вместо 8 у LongWritable), а сравнивается при сортировке прямо в сериализованном виде, без создания объектов.
+    static class VarLongKey implements WritableComparable<VarLongKey> {
+        private long value;
+
+        static {
+            WritableComparator.define(VarLongKey.class, new Comparator());
+        }
+
+        long get() {
+            return value;
+        }
+
+        void set(long value) {
+            this.value = value;
+        }
+
+        @Override
+        public void write(DataOutput out) throws IOException {
+            WritableUtils.writeVLong(out, value);
+        }
+
+        @Override
+        public void readFields(DataInput in) throws IOException {
+            value = WritableUtils.readVLong(in);
+        }
+
+        @Override
+        public int compareTo(VarLongKey other) {
+            return Long.compare(value, other.value);
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof VarLongKey && value == ((VarLongKey) other).value;
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(value);
+        }
+
+        @Override
+        public String toString() {
+            return Long.toString(value);
+        }
+
+        // Компаратор сериализованных ключей: порядок байт числа переменной длины не совпадает с порядком чисел,
+        // поэтому числа декодируются, но без десериализации ключей в объекты
+        static class Comparator extends WritableComparator {
+            Comparator() {
+                super(VarLongKey.class);
+            }
+
+            @Override
+            public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2) {
+                try {
+                    return Long.compare(readVLong(b1, s1), readVLong(b2, s2));
+                } catch (IOException ex) {
+                    throw new IllegalArgumentException(ex);
+                }
+            }
+        }
+    }
+
     // Сериализуемый класс для передачи строки из маппера в редюсер при операции join, в котором хранится строка из маппера
-    // + тип записи (т.е. из какой таблицы была взята строчка), для последующего разделения записей в Reducer'е
+    // + тип записи (т.е. из какой таблицы была взята строчка), для последующего разделения записей в Reducer'е.
+    // Тип записи передается одним байтом.
     private static class TextWithType implements Writable {
         public TextWithType() {
             this(RecordType.NA);
@@ -172,13 +647,13 @@ public class FastestAnswerers extends Configured implements Tool {
 
         @Override
         public void write(DataOutput out) throws IOException {
-            out.writeInt(recordType.ordinal());
+            out.writeByte(recordType.ordinal());
             record.write(out);
         }
 
         @Override
         public void readFields(DataInput in) throws IOException {
-            recordType = RecordType.values()[in.readInt()];
+            recordType = RecordType.values()[in.readByte()];
             record.readFields(in);
         }
 
@@ -195,8 +670,8 @@ public class FastestAnswerers extends Configured implements Tool {
     enum RecordType { NA, Answer, Question }
 
     // Базовый класс-маппер для соединения таблиц содержащих посты по ключу
-    private abstract static class SequenceFileJoinMapper extends Mapper<Object, Text, LongWritable, TextWithType> {
-        private final LongWritable outKey = new LongWritable();
+    private abstract static class SequenceFileJoinMapper extends Mapper<Object, Text, VarLongKey, TextWithType> {
+        private final VarLongKey outKey = new VarLongKey();
         private final TextWithType outValue = new TextWithType(getRecordType());
 
         // метод для получения типа-записи
@@ -210,8 +685,22 @@ public class FastestAnswerers extends Configured implements Tool {
 
         String[] fieldNames = getFieldNames();
 
+        private RecordProfiler profiler;
+
+        @Override
+        protected void setup(Context context) {
+            profiler = new RecordProfiler(context.getConfiguration(), getClass().getSimpleName());
+        }
+
+        @Override
+        protected void cleanup(Context context) throws IOException {
+            profiler.close(context);
+        }
+
         @Override
         protected void map(Object key, Text value, Context context) throws IOException, InterruptedException {
+            long start = profiler.start();
+
             Map<String, String> row = SequenceFileUtils.parseFields(value.toString(), fieldNames);
 
             String keyString = getKeyString(row);
@@ -221,6 +710,8 @@ public class FastestAnswerers extends Configured implements Tool {
                 outValue.getRecord().set(toSequenceString(row, fieldNames));
                 context.write(outKey, outValue);
             }
+
+            profiler.record(start, value.getLength(), () -> row.get("Id"));
         }
     }
 
@@ -260,29 +751,125 @@ public class FastestAnswerers extends Configured implements Tool {
         }
     }
 
+    static final String JOIN_BUFFER_BYTES = "joinBufferBytes";
+
+    // Счетчики редюсеров соединения, по которым видно "перекос" данных
+    enum JoinCounters {
+        // ключи, для которых хотя бы с одной стороны больше одной строки (при корректном дампе таких нет)
+        DUPLICATE_KEYS,
+        // ключи, одна из сторон которых не поместилась в бюджет памяти и была сброшена на диск
+        SPILLED_KEYS,
+        SPILLED_RECORDS,
+        SPILLED_BYTES
+    }
+
+    // функция для создания буфера стороны соединения с бюджетом памяти из параметра joinBufferBytes (по умолчанию 32 МБ)
+    static SpillableJoinBuffer createJoinBuffer(Configuration conf) {
+        return new SpillableJoinBuffer(conf.getLong(JOIN_BUFFER_BYTES, 32L * 1024 * 1024));
+    }
+
+    // Метод для учета "перекоса" ключа соединения в счетчиках; о сброшенных на диск ключах дополнительно пишется в лог задачи
+    static void countJoinSkew(TaskInputOutputContext<?, ?, ?, ?> context, VarLongKey key,
+                              SpillableJoinBuffer left, SpillableJoinBuffer right) throws IOException {
+        if (left.size() > 1 || right.size() > 1) {
+            context.getCounter(JoinCounters.DUPLICATE_KEYS).increment(1);
+        }
+
+        if (left.isSpilled() || right.isSpilled()) {
+            context.getCounter(JoinCounters.SPILLED_KEYS).increment(1);
+            context.getCounter(JoinCounters.SPILLED_RECORDS).increment(left.getSpilledRecords() + right.getSpilledRecords());
+            context.getCounter(JoinCounters.SPILLED_BYTES).increment(left.getSpilledBytes() + right.getSpilledBytes());
+            System.err.println("join key " + key + " spilled to disk: " + left.size() + " x " + right.size() + " rows");
+        }
+    }
+
+    static final String SKETCH_PATH = "sketchPath";
+    static final String SKETCH_PRECISION = "sketchPrecision";
+
+    // Метод для записи скетчей задачи в папку sketchPath (если задана), по файлу на попытку задачи. Файл сначала пишется
+    // под скрытым именем и затем переименовывается, поэтому драйвер не увидит недописанный файл упавшей попытки,
+    // а файлы повторных и спекулятивных попыток безвредны: слияние HyperLogLog с тем же скетчем ничего не меняет.
+    static void writeSketches(TaskInputOutputContext<?, ?, ?, ?> context, Map<String, HyperLogLog> sketches) throws IOException {
+        Configuration conf = context.getConfiguration();
+        String sketchPath = conf.get(SKETCH_PATH);
+        if (StringUtils.isBlank(sketchPath) || sketches.isEmpty()) {
+            return;
+        }
+
+        String fileName = context.getTaskAttemptID().toString();
+        Path tempPath = new Path(sketchPath, "." + fileName);
+        Path path = new Path(sketchPath, fileName);
+
+        try (SequenceFile.Writer writer = SequenceFile.createWriter(conf, SequenceFile.Writer.file(tempPath),
+                SequenceFile.Writer.keyClass(Text.class), SequenceFile.Writer.valueClass(HyperLogLog.class))) {
+            Text name = new Text();
+            for (Map.Entry<String, HyperLogLog> entry : sketches.entrySet()) {
+                name.set(entry.getKey());
+                writer.append(name, entry.getValue());
+            }
+        }
+
+        FileSystem fs = path.getFileSystem(conf);
+        fs.delete(path, false);
+        if (!fs.rename(tempPath, path)) {
+            throw new IOException("Cannot rename " + tempPath + " to " + path);
+        }
+    }
+
     // Редюсер для операции объединения таблиц Questions и Answers по условию Questions.accepted_answer_id = Answers.id.
     // Т.о. в каждой строчке получаем информацию о вопросе и о правильном и честном (не для накрутки рейтингов) ответе на этот вопрос.
-    // Критерий честности ответа см. ниже в методе reduce.
-    static class JoinReducer extends Reducer<LongWritable, TextWithType, NullWritable, Text> {
+    // Критерий честности ответа см. ниже в методе reduce. Каждая пара записывается один раз вместе с битовой маской наборов
+    // параметров фильтра (CheatFilterSetting), которые она проходит.
+    // Строки каждой стороны накапливаются в буферах с ограничением по памяти (см. SpillableJoinBuffer).
+    // Попутно по парам, прошедшим основной набор параметров, строятся скетчи HyperLogLog числа различных отвечавших,
+    // различных задавших вопрос с принятым ответом и различных отвечавших за каждый месяц (см. writeSketches).
+    static class JoinReducer extends Reducer<VarLongKey, TextWithType, NullWritable, Text> {
 
         private final Text outValue = new Text();
         private final StringBuilder buffer = new StringBuilder();
 
-        private final static SimpleDateFormat dateFormat;
+        private List<CheatFilterSetting> settings;
 
-        static {
-            dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS");
-            dateFormat.setTimeZone(TimeZone.getTimeZone("GMT"));
+        private SpillableJoinBuffer questions;
+        private SpillableJoinBuffer answers;
+
+        private final Map<String, HyperLogLog> sketches = new TreeMap<>();
+        private int sketchPrecision;
+
+        private RecordProfiler profiler;
+
+        @Override
+        protected void setup(Context context) {
+            settings = CheatFilterSetting.fromConfiguration(context.getConfiguration());
+            questions = createJoinBuffer(context.getConfiguration());
+            answers = createJoinBuffer(context.getConfiguration());
+            sketchPrecision = context.getConfiguration().getInt(SKETCH_PRECISION, HyperLogLog.DEFAULT_PRECISION);
+            profiler = new RecordProfiler(context.getConfiguration(), "JoinReducer");
+        }
+
+        @Override
+        protected void cleanup(Context context) throws IOException {
+            questions.close();
+            answers.close();
+            writeSketches(context, sketches);
+            profiler.close(context);
+        }
+
+        private void addToSketch(String name, String userId) {
+            sketches.computeIfAbsent(name, x -> new HyperLogLog(sketchPrecision)).add(Long.parseLong(userId));
         }
 
         @Override
-        protected void reduce(LongWritable key, Iterable<TextWithType> values, Context context) throws IOException, InterruptedException {
+        protected void reduce(VarLongKey key, Iterable<TextWithType> values, Context context) throws IOException, InterruptedException {
+            long start = profiler.start();
+            long bytes = 0;
 
-            List<String> questions = new ArrayList<>();
-            List<String> answers = new ArrayList<>();
+            questions.clear();
+            answers.clear();
 
-            // Распределим значения по типам строк в соотв. списки
+            // Распределим значения по типам строк в соотв. буферы
             for (TextWithType value : values) {
+                bytes += value.getRecord().getLength();
                 String strValue = value.getRecord().toString();
                 switch (value.getRecordType()) {
                     case Question:
@@ -296,47 +883,64 @@ public class FastestAnswerers extends Configured implements Tool {
                 }
             }
 
-            try{
-                if (questions.size() > 0 && answers.size() > 0) {
-                    for (String question : questions) {
-                        for (String answer : answers) {
+            countJoinSkew(context, key, questions, answers);
 
-                            Map<String, String> questionFields = SequenceFileUtils.parseFields(question, postsFields);
-                            Map<String, String> answerFields = SequenceFileUtils.parseFields(answer, postsFields);
+            if (!questions.isEmpty() && !answers.isEmpty()) {
+                SpillableJoinBuffer.crossProduct(questions, answers, (question, answer) -> join(question, answer, context));
+            }
 
-                            String questionCreationDateString = questionFields.get("CreationDate");
-                            String answerCreationDateString = answerFields.get("CreationDate");
+            profiler.record(start, bytes, key::toString);
+        }
 
-                            String questionOwnerUserId = questionFields.get("OwnerUserId");
-                            String answerOwnerUserId = answerFields.get("OwnerUserId");
+        private void join(String question, String answer, Context context) throws IOException, InterruptedException {
+            try{
+                Map<String, String> questionFields = SequenceFileUtils.parseFields(question, postsFields);
+                Map<String, String> answerFields = SequenceFileUtils.parseFields(answer, postsFields);
 
-                            Date questionDate = dateFormat.parse(questionCreationDateString);
-                            Date answerDate = dateFormat.parse(answerCreationDateString);
+                String questionCreationDateString = questionFields.get("CreationDate");
+                String answerCreationDateString = answerFields.get("CreationDate");
 
-                            long seconds = getTimeDifferenceInSeconds(questionDate, answerDate);
+                String questionOwnerUserId = questionFields.get("OwnerUserId");
+                String answerOwnerUserId = answerFields.get("OwnerUserId");
 
-                            boolean selfAnswer = questionOwnerUserId.equals(answerOwnerUserId);
+                Date questionDate = parseDate(questionCreationDateString);
+                Date answerDate = parseDate(answerCreationDateString);
 
-                            if(StringUtils.isBlank(questionOwnerUserId) || StringUtils.isBlank(answerOwnerUserId))
-                                continue;
+                long seconds = getTimeDifferenceInSeconds(questionDate, answerDate);
 
-                            // После join'а строчек сразу же отфильтровываем неудовлетворяющие следующему условию:
-                            // Считаем честным ответ на вопрос, если пользователь отвечает не на свой же вопрос более чем через 5 минут
-                            // либо если пользователь отвечает на свой же вопрос через час, все обдумав, прогуглив и т.д. и т.п.
-                            boolean condition = (!selfAnswer && seconds > 60 * 5) || (selfAnswer && seconds > 60 * 60);
+                boolean selfAnswer = questionOwnerUserId.equals(answerOwnerUserId);
 
-                            if(condition){
-                                buffer.setLength(0);
-                                buffer.append(question).append(answer);
-                                buffer.append(seconds);
-                                buffer.append(SequenceFileUtils.FIELD_SEPARATOR);
+                if(StringUtils.isBlank(questionOwnerUserId) || StringUtils.isBlank(answerOwnerUserId))
+                    return;
 
-                                outValue.set(buffer.toString());
-                                context.write(NullWritable.get(), outValue);
-                            }
-                        }
+                // После join'а строчек сразу же отфильтровываем неудовлетворяющие следующему условию:
+                // Считаем честным ответ на вопрос, если пользователь отвечает не на свой же вопрос более чем через 5 минут
+                // либо если пользователь отвечает на свой же вопрос через час, все обдумав, прогуглив и т.д. и т.п.
+                // (пороги задаются наборами параметров, строчка остается, если проходит хотя бы один набор)
+                long settingsMask = 0;
+                for (int i = 0; i < settings.size(); ++i) {
+                    if (settings.get(i).accepts(selfAnswer, seconds)) {
+                        settingsMask |= 1L << i;
                     }
                 }
+
+                if(settingsMask != 0){
+                    buffer.setLength(0);
+                    buffer.append(question).append(answer);
+                    buffer.append(seconds);
+                    buffer.append(SequenceFileUtils.FIELD_SEPARATOR);
+                    buffer.append(settingsMask);
+                    buffer.append(SequenceFileUtils.FIELD_SEPARATOR);
+
+                    outValue.set(buffer.toString());
+                    context.write(NullWritable.get(), outValue);
+                }
+
+                if ((settingsMask & 1) != 0) {
+                    addToSketch("distinctAnswerers", answerOwnerUserId);
+                    addToSketch("distinctAskers", questionOwnerUserId);
+                    addToSketch("activeAnswerers." + answerCreationDateString.substring(0, 7), answerOwnerUserId);
+                }
             }
             catch (ParseException ex){
                 throw new IOException("Date parsing failed!");
@@ -345,20 +949,64 @@ public class FastestAnswerers extends Configured implements Tool {
     }
 
     // Класс содержащий аггрегаты (среднее время ответа на вопрос, общее число ответов на вопрос) для данного конкретного пользователя.
+    // Помимо среднего хранит t-digest времен ответа, по которому можно оценить медиану и любые другие перцентили:
+    // среднее сильно искажается единичными ответами на вопросы многолетней давности. Размер дайджеста ограничен
+    // и не зависит от того, насколько активен пользователь.
+    // Также хранит сумму квадратов отклонений от среднего, по которой считается доверительный интервал среднего.
     public static class Stats implements Writable {
         double averageAnswerTime;
+        double squaredDeviationsSum;
         int totalAnswersCount;
+        final TDigest answerTimeDigest = new TDigest();
 
         @Override
         public void write(DataOutput out) throws IOException {
             out.writeDouble(averageAnswerTime);
+            out.writeDouble(squaredDeviationsSum);
             out.writeInt(totalAnswersCount);
+            answerTimeDigest.write(out);
         }
 
         @Override
         public void readFields(DataInput in) throws IOException {
             averageAnswerTime = in.readDouble();
+            squaredDeviationsSum = in.readDouble();
             totalAnswersCount = in.readInt();
+            answerTimeDigest.readFields(in);
+        }
+
+        // сбрасывает аггрегаты, чтобы объект можно было переиспользовать для следующего ключа
+        void clear(){
+            averageAnswerTime = 0;
+            squaredDeviationsSum = 0;
+            totalAnswersCount = 0;
+            answerTimeDigest.clear();
+        }
+
+        // устанавливает аггрегаты для единственного ответа
+        void setSingleAnswer(long seconds){
+            averageAnswerTime = seconds;
+            squaredDeviationsSum = 0;
+            totalAnswersCount = 1;
+            answerTimeDigest.clear();
+            answerTimeDigest.add(seconds);
+        }
+
+        // добавляет к аггрегатам аггрегаты другого объекта
+        void merge(Stats other){
+            if (other.getTotalAnswersCount() == 0) {
+                return;
+            }
+            int totalAnswersCountBefore = totalAnswersCount;
+            int otherAnswersCount = other.getTotalAnswersCount();
+            totalAnswersCount = totalAnswersCountBefore + otherAnswersCount;
+
+            // формула объединения дисперсий двух выборок (Chan et al.)
+            double delta = other.getAverageAnswerTime() - averageAnswerTime;
+            squaredDeviationsSum += other.squaredDeviationsSum + delta * delta * totalAnswersCountBefore * otherAnswersCount / totalAnswersCount;
+
+            averageAnswerTime = (averageAnswerTime * totalAnswersCountBefore + other.getAverageAnswerTime() * otherAnswersCount) / totalAnswersCount;
+            answerTimeDigest.merge(other.getAnswerTimeDigest());
         }
 
         double getAverageAnswerTime(){
@@ -376,49 +1024,368 @@ public class FastestAnswerers extends Configured implements Tool {
         void setTotalAnswersCount(int value){
             totalAnswersCount = value;
         }
+
+        TDigest getAnswerTimeDigest(){
+            return answerTimeDigest;
+        }
+
+        // полуширина 95% доверительного интервала среднего времени ответа (NaN, если ответ всего один)
+        double getAverageAnswerTimeConfidenceInterval(){
+            if (totalAnswersCount < 2) {
+                return Double.NaN;
+            }
+            double variance = squaredDeviationsSum / (totalAnswersCount - 1);
+            return 1.96 * Math.sqrt(variance / totalAnswersCount);
+        }
+    }
+
+    // Аггрегаты пользователя отдельно для каждого набора параметров фильтра "накруток" (см. CheatFilterSetting), i-й элемент
+    // соответствует i-му набору. Сериализуются только непустые аггрегаты, поэтому при единственном наборе параметров
+    // накладные расходы по сравнению с Stats -- пара байт.
+    public static class SettingsStats implements Writable {
+        private Stats[] stats = new Stats[0];
+        private int size;
+
+        // очищает аггрегаты и устанавливает число наборов параметров
+        void reset(int newSize){
+            size = 0;
+            grow(newSize);
+        }
+
+        void merge(SettingsStats other){
+            grow(other.size());
+            for (int i = 0; i < other.size(); ++i) {
+                stats[i].merge(other.get(i));
+            }
+        }
+
+        // добавляет недостающие пустые аггрегаты, не трогая уже накопленные
+        private void grow(int newSize){
+            if (stats.length < newSize) {
+                Stats[] newStats = Arrays.copyOf(stats, newSize);
+                for (int i = stats.length; i < newSize; ++i) {
+                    newStats[i] = new Stats();
+                }
+                stats = newStats;
+            }
+            for (int i = size; i < newSize; ++i) {
+                stats[i].clear();
+            }
+            size = Math.max(size, newSize);
+        }
+
+        Stats get(int index){
+            return stats[index];
+        }
+
+        int size(){
+            return size;
+        }
+
+        @Override
+        public void write(DataOutput out) throws IOException {
+            long nonEmptyMask = 0;
+            for (int i = 0; i < size; ++i) {
+                if (stats[i].getTotalAnswersCount() > 0) {
+                    nonEmptyMask |= 1L << i;
+                }
+            }
+
+            WritableUtils.writeVInt(out, size);
+            WritableUtils.writeVLong(out, nonEmptyMask);
+            for (int i = 0; i < size; ++i) {
+                if ((nonEmptyMask & (1L << i)) != 0) {
+                    stats[i].write(out);
+                }
+            }
+        }
+
+        @Override
+        public void readFields(DataInput in) throws IOException {
+            reset(WritableUtils.readVInt(in));
+            long nonEmptyMask = WritableUtils.readVLong(in);
+            for (int i = 0; i < size; ++i) {
+                if ((nonEmptyMask & (1L << i)) != 0) {
+                    stats[i].readFields(in);
+                }
+            }
+        }
+    }
+
+    // Разрезы, по которым аггрегируется статистика пользователей. Все разрезы проходят через один и тот же shuffle
+    // стадии аггрегации: ключ состоит из названия разреза, значения разреза (например, тега) и id пользователя,
+    // а результаты каждого разреза редюсер пишет в свою поддиректорию выходной папки стадии аггрегации.
+    // У каждого разреза свой порог числа ответов (аналог HAVING count(*) > 3) и свой размер топа.
+    enum Grouping {
+        // общая статистика пользователя, размер топа задается аргументом командной строки
+        User(null, "answersThreshold"),
+        // статистика пользователя по тегу вопроса
+        Tag("tagsTopN", "tagsAnswersThreshold"),
+        // статистика пользователя по году создания вопроса
+        Year("yearsTopN", "yearsAnswersThreshold"),
+        // статистика пользователя по месяцу создания вопроса
+        Month("monthsTopN", "monthsAnswersThreshold");
+
+        private final String topNParameter;
+        private final String answersThresholdParameter;
+
+        Grouping(String topNParameter, String answersThresholdParameter) {
+            this.topNParameter = topNParameter;
+            this.answersThresholdParameter = answersThresholdParameter;
+        }
+
+        String getOutputName() {
+            return name().toLowerCase();
+        }
+
+        int getTopN(Configuration conf) {
+            return topNParameter == null ? 0 : conf.getInt(topNParameter, 0);
+        }
+
+        int getAnswersThreshold(Configuration conf) {
+            return conf.getInt(answersThresholdParameter, 3);
+        }
+
+        // общий разрез считается всегда, остальные -- только если для них задан размер топа
+        boolean isEnabled(Configuration conf) {
+            return this == User || getTopN(conf) > 0;
+        }
+    }
+
+    // функция для получения имени поддиректории стадии аггрегации, в которую пишутся результаты разреза для заданного набора
+    // параметров фильтра "накруток"; для основного набора -- просто имя разреза. Общая статистика всех наборов пишется
+    // в одну папку, а номер набора записывается в строку первым полем, чтобы соединить все наборы с Users одной задачей
+    static String getAggregationOutputName(Grouping grouping, int settingIndex) {
+        return settingIndex == 0 || grouping == Grouping.User ? grouping.getOutputName() : grouping.getOutputName() + "_setting_" + settingIndex;
+    }
+
+    // функция для получения имени поддиректории, в которую соединение с Users и построение топов пишут результаты набора
+    // параметров фильтра "накруток"
+    static String getSettingOutputName(int settingIndex) {
+        return "setting_" + settingIndex;
+    }
+
+    // Ключ стадии аггрегации: разрез (один байт), значение разреза (пустое для общего разреза) и id пользователя
+    // (число переменной длины). Сравнивается при сортировке прямо в сериализованном виде.
+    static class AggregationKey implements WritableComparable<AggregationKey> {
+        private Grouping grouping = Grouping.User;
+        private final Text group = new Text();
+        private long userId;
+
+        static {
+            WritableComparator.define(AggregationKey.class, new Comparator());
+        }
+
+        Grouping getGrouping() {
+            return grouping;
+        }
+
+        Text getGroup() {
+            return group;
+        }
+
+        long getUserId() {
+            return userId;
+        }
+
+        void set(Grouping grouping, String group, long userId) {
+            this.grouping = grouping;
+            this.group.set(group);
+            this.userId = userId;
+        }
+
+        @Override
+        public void write(DataOutput out) throws IOException {
+            out.writeByte(grouping.ordinal());
+            group.write(out);
+            WritableUtils.writeVLong(out, userId);
+        }
+
+        @Override
+        public void readFields(DataInput in) throws IOException {
+            grouping = Grouping.values()[in.readByte()];
+            group.readFields(in);
+            userId = WritableUtils.readVLong(in);
+        }
+
+        @Override
+        public int compareTo(AggregationKey other) {
+            int result = Integer.compare(grouping.ordinal(), other.grouping.ordinal());
+            if (result == 0) {
+                result = group.compareTo(other.group);
+            }
+            return result != 0 ? result : Long.compare(userId, other.userId);
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof AggregationKey && compareTo((AggregationKey) other) == 0;
+        }
+
+        @Override
+        public int hashCode() {
+            return (grouping.ordinal() * 31 + group.hashCode()) * 31 + Long.hashCode(userId);
+        }
+
+        // Компаратор сериализованных ключей: байт разреза, затем байты значения разреза, затем id пользователя
+        static class Comparator extends WritableComparator {
+            Comparator() {
+                super(AggregationKey.class);
+            }
+
+            @Override
+            public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2) {
+                int result = Integer.compare(b1[s1], b2[s2]);
+                if (result != 0) {
+                    return result;
+                }
+
+                try {
+                    int groupStart1 = s1 + 1;
+                    int groupStart2 = s2 + 1;
+                    int lengthSize1 = WritableUtils.decodeVIntSize(b1[groupStart1]);
+                    int lengthSize2 = WritableUtils.decodeVIntSize(b2[groupStart2]);
+                    int length1 = readVInt(b1, groupStart1);
+                    int length2 = readVInt(b2, groupStart2);
+
+                    result = compareBytes(b1, groupStart1 + lengthSize1, length1, b2, groupStart2 + lengthSize2, length2);
+                    if (result != 0) {
+                        return result;
+                    }
+
+                    return Long.compare(
+                            readVLong(b1, groupStart1 + lengthSize1 + length1),
+                            readVLong(b2, groupStart2 + lengthSize2 + length2));
+                } catch (IOException ex) {
+                    throw new IllegalArgumentException(ex);
+                }
+            }
+        }
+    }
+
+    // функция для разбора строки тегов вопроса вида <tag1><tag2> (в дампе угловые скобки экранированы как &lt; и &gt;)
+    static List<String> parseTags(String tags) {
+        List<String> result = new ArrayList<>();
+        if (StringUtils.isBlank(tags)) {
+            return result;
+        }
+
+        String unescaped = tags.replace("&lt;", "<").replace("&gt;", ">");
+        int start = unescaped.indexOf('<');
+        while (start >= 0) {
+            int end = unescaped.indexOf('>', start);
+            if (end < 0) {
+                break;
+            }
+            if (end > start + 1) {
+                result.add(unescaped.substring(start + 1, end));
+            }
+            start = unescaped.indexOf('<', end);
+        }
+        return result;
     }
 
     // Класс-маппер для аггрегирования среднего время ответа на вопрос, общего числа ответов на вопрос.
-    // Для каждого вопроса кладет в Stats общее число 1, и время в секундах между ответом на данный конкретный вопрос
-    public static class AggregationMapper extends Mapper<Object, Text, Text, Stats> {
+    // Для каждого вопроса кладет в Stats общее число 1, и время в секундах между ответом на данный конкретный вопрос.
+    // Для включенных разрезов дополнительно отправляет ту же запись для каждого тега вопроса, для года и для месяца создания вопроса.
+    // Общая статистика считается для каждого набора параметров фильтра "накруток", который прошел ответ, статистика
+    // по разрезам -- только для основного (первого) набора.
+    public static class AggregationMapper extends Mapper<Object, Text, AggregationKey, SettingsStats> {
         protected static final String[] fieldNames;
-        private final static SimpleDateFormat dateFormat;
 
         static{
-            fieldNames = Stream.concat(Stream.concat(Arrays.stream(postsFields).map(x -> "Question" + x), Arrays.stream(postsFields).map(x -> "Answer" + x)), Stream.of("TimeToAnswerInSeconds")).toArray(String[]::new);
+            fieldNames = Stream.concat(Stream.concat(Arrays.stream(postsFields).map(x -> "Question" + x), Arrays.stream(postsFields).map(x -> "Answer" + x)), Stream.of("TimeToAnswerInSeconds", "CheatFilterSettingsMask")).toArray(String[]::new);
+        }
+
+        private final AggregationKey outKey = new AggregationKey();
+        private final SettingsStats userValue = new SettingsStats();
+        private final SettingsStats groupedValue = new SettingsStats();
+
+        private int settingsCount;
+        private boolean perTag;
+        private boolean perYear;
+        private boolean perMonth;
+
+        private RecordProfiler profiler;
 
-            dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS");
-            dateFormat.setTimeZone(TimeZone.getTimeZone("GMT"));
+        @Override
+        protected void setup(Context context) {
+            Configuration conf = context.getConfiguration();
+            settingsCount = CheatFilterSetting.fromConfiguration(conf).size();
+            perTag = Grouping.Tag.isEnabled(conf);
+            perYear = Grouping.Year.isEnabled(conf);
+            perMonth = Grouping.Month.isEnabled(conf);
+            profiler = new RecordProfiler(conf, "AggregationMapper");
         }
 
-        private final Text outKey = new Text();
-        private final Stats outValue = new Stats();
+        @Override
+        protected void cleanup(Context context) throws IOException {
+            profiler.close(context);
+        }
 
         @Override
         protected void map(Object key, Text value, Context context) throws IOException, InterruptedException {
+            long start = profiler.start();
+
             Map<String, String> row = SequenceFileUtils.parseFields(value.toString(), fieldNames);
+            aggregate(row, context);
 
-            String keyString = row.get("AnswerOwnerUserId");
+            profiler.record(start, value.getLength(), () -> row.get("AnswerId"));
+        }
+
+        private void aggregate(Map<String, String> row, Context context) throws IOException, InterruptedException {
+            long userId = Long.parseLong(row.get("AnswerOwnerUserId"));
 
             String questionCreationDateString = row.get("QuestionCreationDate");
             String answerCreationDateString = row.get("AnswerCreationDate");
 
             Date questionDate, answerDate;
             try{
-                questionDate = dateFormat.parse(questionCreationDateString);
-                answerDate = dateFormat.parse(answerCreationDateString);
+                questionDate = parseDate(questionCreationDateString);
+                answerDate = parseDate(answerCreationDateString);
             }
             catch (ParseException ex){
                 throw new IOException("Date parsing failed!");
             }
 
             long seconds = getTimeDifferenceInSeconds(questionDate, answerDate);
+            long settingsMask = Long.parseLong(row.get("CheatFilterSettingsMask"));
 
-            outKey.set(keyString);
-            outValue.setAverageAnswerTime(seconds);
-            outValue.setTotalAnswersCount(1);
+            userValue.reset(settingsCount);
+            for (int i = 0; i < settingsCount; ++i) {
+                if ((settingsMask & (1L << i)) != 0) {
+                    userValue.get(i).setSingleAnswer(seconds);
+                }
+            }
 
-            context.write(outKey, outValue);
+            write(context, Grouping.User, "", userId, userValue);
+
+            // ответ не прошел основной набор параметров -- в разрезы он не попадает
+            if ((settingsMask & 1L) == 0) {
+                return;
+            }
+
+            groupedValue.reset(1);
+            groupedValue.get(0).setSingleAnswer(seconds);
+
+            if (perTag) {
+                for (String tag : parseTags(row.get("QuestionTags"))) {
+                    write(context, Grouping.Tag, tag, userId, groupedValue);
+                }
+            }
+
+            // дата в формате yyyy-MM-ddTHH:mm:ss.SSS, поэтому год и месяц -- ее префиксы
+            if (perYear) {
+                write(context, Grouping.Year, questionCreationDateString.substring(0, 4), userId, groupedValue);
+            }
+            if (perMonth) {
+                write(context, Grouping.Month, questionCreationDateString.substring(0, 7), userId, groupedValue);
+            }
+        }
+
+        private void write(Context context, Grouping grouping, String group, long userId, SettingsStats value) throws IOException, InterruptedException {
+            outKey.set(grouping, group, userId);
+            context.write(outKey, value);
         }
     }
 
@@ -428,18 +1395,15 @@ public class FastestAnswerers extends Configured implements Tool {
     // данной задачи комбайнер, скорее всего, сильной погоды не сделает, потому что в среднем пользователь отвечает на
     // очень небольшое количество вопросов, при том что всего ответов очень много, поэтому вероятность оказаться в одном
     // map-процессе довльно маленькая.
-    private static class AggregationCombiner extends Reducer<Text, Stats, Text, Stats> {
-        private final Stats result = new Stats();
+    private static class AggregationCombiner extends Reducer<AggregationKey, SettingsStats, AggregationKey, SettingsStats> {
+        private final SettingsStats result = new SettingsStats();
 
         @Override
-        protected void reduce(Text key, Iterable<Stats> values, Context context) throws IOException, InterruptedException {
-            result.setAverageAnswerTime(0);
-            result.setTotalAnswersCount(0);
+        protected void reduce(AggregationKey key, Iterable<SettingsStats> values, Context context) throws IOException, InterruptedException {
+            result.reset(0);
 
-            for (Stats stats : values) {
-                int totalAnswersCountBefore = result.getTotalAnswersCount();
-                result.setTotalAnswersCount(totalAnswersCountBefore + stats.getTotalAnswersCount());
-                result.setAverageAnswerTime((result.getAverageAnswerTime() * totalAnswersCountBefore + stats.getAverageAnswerTime()) / result.getTotalAnswersCount());
+            for (SettingsStats stats : values) {
+                result.merge(stats);
             }
 
             context.write(key, result);
@@ -447,38 +1411,95 @@ public class FastestAnswerers extends Configured implements Tool {
     }
 
     // Редюсер для аггрегирования среднего время ответа на вопрос, общего числа ответов на вопрос еще на этапе маппинга.
-    // Реализует точно такую же логику как и AggregationCombiner, за исключением сохранения результатов в Sequence-формат
-    private static class AggregationReducer extends Reducer<Text, Stats, NullWritable, Text> {
+    // Реализует точно такую же логику как и AggregationCombiner, за исключением сохранения результатов в Sequence-формат.
+    // Кроме среднего записывает медиану, 90-й перцентиль и значение, по которому строится рейтинг (см. rankingPercentile).
+    // Результаты каждого разреза пишутся в свою поддиректорию (см. Grouping), первым полем записывается значение разреза.
+    // Общая статистика для каждого набора параметров фильтра "накруток" считается со своим порогом числа ответов,
+    // вместо значения разреза в ней записывается номер набора (см. getAggregationOutputName).
+    private static class AggregationReducer extends Reducer<AggregationKey, SettingsStats, NullWritable, Text> {
 
         private final Text outValue = new Text();
         private final StringBuilder buffer = new StringBuilder();
-        private final Stats result = new Stats();
+        private final SettingsStats result = new SettingsStats();
+
+        private double rankingPercentile;
+        private double sampleRate;
+        private int sampleMinAnswers;
+        private List<CheatFilterSetting> settings;
+        private final int[] answersThresholds = new int[Grouping.values().length];
+        private MultipleOutputs<NullWritable, Text> multipleOutputs;
+
+        @Override
+        protected void setup(Context context) {
+            rankingPercentile = getRankingPercentile(context.getConfiguration());
+            settings = CheatFilterSetting.fromConfiguration(context.getConfiguration());
+            sampleRate = getSampleRate(context.getConfiguration());
+            sampleMinAnswers = getSampleMinAnswers(context.getConfiguration());
+            for (Grouping grouping : Grouping.values()) {
+                answersThresholds[grouping.ordinal()] = grouping.getAnswersThreshold(context.getConfiguration());
+            }
+            multipleOutputs = new MultipleOutputs<>(context);
+        }
+
+        @Override
+        protected void cleanup(Context context) throws IOException, InterruptedException {
+            multipleOutputs.close();
+        }
 
         @Override
-        protected void reduce(Text key, Iterable<Stats> values, Context context) throws IOException, InterruptedException {
-            result.setAverageAnswerTime(0);
-            result.setTotalAnswersCount(0);
+        protected void reduce(AggregationKey key, Iterable<SettingsStats> values, Context context) throws IOException, InterruptedException {
+            result.reset(0);
+
+            for (SettingsStats stats : values) {
+                result.merge(stats);
+            }
+
+            Grouping grouping = key.getGrouping();
 
-            for (Stats stats : values) {
-                int totalAnswersCountBefore = result.getTotalAnswersCount();
-                int statsAnswersCount = stats.getTotalAnswersCount();
-                result.setTotalAnswersCount(totalAnswersCountBefore + statsAnswersCount);
-                result.setAverageAnswerTime((result.getAverageAnswerTime() * totalAnswersCountBefore + stats.getAverageAnswerTime() * statsAnswersCount) / result.getTotalAnswersCount());
+            for (int i = 0; i < result.size(); ++i) {
+                int answersThreshold = grouping == Grouping.User ? settings.get(i).getAnswersThreshold() : answersThresholds[grouping.ordinal()];
+                write(key, i, result.get(i), answersThreshold);
             }
+        }
+
+        private void write(AggregationKey key, int settingIndex, Stats result, int answersThreshold) throws IOException, InterruptedException {
+            Grouping grouping = key.getGrouping();
+
+            // в режиме быстрой оценки порог сравнивается с оценкой полного числа ответов пользователя,
+            // и кроме того в выборке должно быть не меньше sampleMinAnswers ответов
+            double estimatedTotalAnswersCount = result.getTotalAnswersCount() / sampleRate;
+
+            if(estimatedTotalAnswersCount > answersThreshold && result.getTotalAnswersCount() >= sampleMinAnswers){
+                TDigest digest = result.getAnswerTimeDigest();
+                double rankingValue = Double.isNaN(rankingPercentile) ? result.getAverageAnswerTime() : digest.quantile(rankingPercentile);
 
-            if(result.getTotalAnswersCount() > 3){
                 buffer.setLength(0);
+                if (grouping == Grouping.User) {
+                    buffer.append(settingIndex).append(SequenceFileUtils.FIELD_SEPARATOR);
+                } else {
+                    buffer.append(key.getGroup()).append(SequenceFileUtils.FIELD_SEPARATOR);
+                }
                 buffer
-                        .append(key)
+                        .append(key.getUserId())
                         .append(SequenceFileUtils.FIELD_SEPARATOR)
                         .append(result.getAverageAnswerTime())
                         .append(SequenceFileUtils.FIELD_SEPARATOR)
                         .append(result.getTotalAnswersCount())
+                        .append(SequenceFileUtils.FIELD_SEPARATOR)
+                        .append(digest.quantile(0.5))
+                        .append(SequenceFileUtils.FIELD_SEPARATOR)
+                        .append(digest.quantile(0.9))
+                        .append(SequenceFileUtils.FIELD_SEPARATOR)
+                        .append(rankingValue)
+                        .append(SequenceFileUtils.FIELD_SEPARATOR)
+                        .append(result.getAverageAnswerTimeConfidenceInterval())
+                        .append(SequenceFileUtils.FIELD_SEPARATOR)
+                        .append(estimatedTotalAnswersCount)
                         .append(SequenceFileUtils.FIELD_SEPARATOR);
 
                 outValue.set(buffer.toString());
 
-                context.write(NullWritable.get(), outValue);
+                multipleOutputs.write(NullWritable.get(), outValue, getAggregationOutputName(grouping, settingIndex) + "/part");
             }
         }
     }
@@ -504,13 +1525,13 @@ public class FastestAnswerers extends Configured implements Tool {
 
         @Override
         public void write(DataOutput out) throws IOException {
-            out.writeInt(recordType.ordinal());
+            out.writeByte(recordType.ordinal());
             record.write(out);
         }
 
         @Override
         public void readFields(DataInput in) throws IOException {
-            recordType = AggregateUsersJoinRecordType.values()[in.readInt()];
+            recordType = AggregateUsersJoinRecordType.values()[in.readByte()];
             record.readFields(in);
         }
 
@@ -531,13 +1552,13 @@ public class FastestAnswerers extends Configured implements Tool {
     };
 
     // Класс-маппер для для объединение таблицы Users с чем-то другим по id пользователя
-    private static class UserIdMapper extends Mapper<Object, Text, LongWritable, AggregateUsersJoinTextWithType> {
-        private final LongWritable outKey = new LongWritable();
+    // Результат разбора строки -- пара (id пользователя, строка с нужными полями).
+    private static class UserIdMapper extends ParallelTextMapper<String[], VarLongKey, AggregateUsersJoinTextWithType> {
+        private final VarLongKey outKey = new VarLongKey();
         private final AggregateUsersJoinTextWithType outValue = new AggregateUsersJoinTextWithType(AggregateUsersJoinRecordType.User);
 
-        public void map(Object key, Text value, Mapper.Context context)
-                throws IOException, InterruptedException {
-
+        @Override
+        protected String[] transform(Text value) {
             String textString = value.toString();
 
             Map<String, String> row = XmlUtils.parseXmlRow(textString);
@@ -545,164 +1566,475 @@ public class FastestAnswerers extends Configured implements Tool {
             String keyString = row.get("Id");
 
             if (StringUtils.isNotBlank(keyString)) {
-                outValue.getRecord().set(toSequenceString(row, requiredUserFieldNames));
-                outKey.set(Long.parseLong(keyString));
-                context.write(outKey, outValue);
+                return new String[] { keyString, toSequenceString(row, requiredUserFieldNames) };
             }
+            return null;
+        }
+
+        @Override
+        protected void emit(String[] result, Context context) throws IOException, InterruptedException {
+            outValue.getRecord().set(result[1]);
+            outKey.set(Long.parseLong(result[0]));
+            context.write(outKey, outValue);
         }
     }
 
     // Интересующие поля из таблицы с аггрегатами, которые хотим получить в результате после join'а аггрегатов со средним
     // временем ответа с талицей Users
     private static final String[] aggregateFieldNames = new String[] {
-            "AnswerOwnerUserId", "AverageTimeToAnswerInSeconds",  "TotalAnswersCount"
+            "AnswerOwnerUserId", "AverageTimeToAnswerInSeconds",  "TotalAnswersCount",
+            "MedianTimeToAnswerInSeconds", "P90TimeToAnswerInSeconds", "RankingTimeToAnswerInSeconds",
+            "AverageTimeToAnswerConfidenceInterval", "EstimatedTotalAnswersCount"
     };
 
+    // Поля таблиц с аггрегатами: значение разреза (для общей статистики -- номер набора параметров фильтра "накруток")
+    // + поля аггрегатов
+    private static final String[] groupedAggregateFieldNames = Stream.concat(Stream.of("Group"), Arrays.stream(aggregateFieldNames)).toArray(String[]::new);
+
     // Класс-маппер для для объединение таблицы аггрегатов с чем-то другим по answer_owner_user_id
-    private static class AggregateAnswerOwnerUserIdMapper extends Mapper<Object, Text, LongWritable, AggregateUsersJoinTextWithType> {
-        private final LongWritable outKey = new LongWritable();
+    private static class AggregateAnswerOwnerUserIdMapper extends Mapper<Object, Text, VarLongKey, AggregateUsersJoinTextWithType> {
+        private final VarLongKey outKey = new VarLongKey();
         private final AggregateUsersJoinTextWithType outValue = new AggregateUsersJoinTextWithType(AggregateUsersJoinRecordType.Aggregate);
 
         public void map(Object key, Text value, Mapper.Context context)
                 throws IOException, InterruptedException {
 
-            Map<String, String> row = SequenceFileUtils.parseFields(value.toString(), aggregateFieldNames);
+            Map<String, String> row = SequenceFileUtils.parseFields(value.toString(), groupedAggregateFieldNames);
 
             String keyString = row.get("AnswerOwnerUserId");
 
             if (StringUtils.isNotBlank(keyString)) {
                 outKey.set(Long.parseLong(keyString));
-                outValue.getRecord().set(toSequenceString(row, aggregateFieldNames));
+                outValue.getRecord().set(toSequenceString(row, groupedAggregateFieldNames));
                 context.write(outKey, outValue);
             }
         }
     }
 
     // Поля, получаемые в результате соединения таблицы Users с аггрегатами
-    private static final String[] aggregateUserJoinResultFieldNames = new String[] {
-        "AnswerOwnerUserId", "DisplayName", "AverageTimeToAnswerInSeconds",  "TotalAnswersCount"
+    static final String[] aggregateUserJoinResultFieldNames = new String[] {
+        "AnswerOwnerUserId", "DisplayName", "AverageTimeToAnswerInSeconds",  "TotalAnswersCount",
+        "MedianTimeToAnswerInSeconds", "P90TimeToAnswerInSeconds", "RankingTimeToAnswerInSeconds",
+        "AverageTimeToAnswerConfidenceInterval", "EstimatedTotalAnswersCount"
     };
 
     // Редюсер для операции объединения таблицы Users и таблицы с аггрегатами по условию Users,id = Aggregates.answerer_id.
     // Т.о. в каждой строчке получаем статистику по числу правильных ответов на вопросы, среднее время ответа, id ответившего и его имя.
-    private static class AggregateUsersJoinReducer extends Reducer<LongWritable, AggregateUsersJoinTextWithType, NullWritable, Text> {
+    // Строки каждой стороны накапливаются в буферах с ограничением по памяти (см. SpillableJoinBuffer).
+    // Аггрегаты всех наборов параметров фильтра "накруток" соединяются за один проход по Users, результат каждого набора
+    // пишется в свою поддиректорию (см. getSettingOutputName).
+    private static class AggregateUsersJoinReducer extends Reducer<VarLongKey, AggregateUsersJoinTextWithType, NullWritable, Text> {
+
+        private final Text outValue = new Text();
+        private final StringBuilder buffer = new StringBuilder();
+
+        private SpillableJoinBuffer users;
+        private SpillableJoinBuffer aggregates;
+
+        private RecordProfiler profiler;
+        private MultipleOutputs<NullWritable, Text> multipleOutputs;
+
+        @Override
+        protected void setup(Context context) {
+            users = createJoinBuffer(context.getConfiguration());
+            aggregates = createJoinBuffer(context.getConfiguration());
+            profiler = new RecordProfiler(context.getConfiguration(), "AggregateUsersJoinReducer");
+            multipleOutputs = new MultipleOutputs<>(context);
+        }
+
+        @Override
+        protected void cleanup(Context context) throws IOException, InterruptedException {
+            users.close();
+            aggregates.close();
+            profiler.close(context);
+            multipleOutputs.close();
+        }
+
+        @Override
+        protected void reduce(VarLongKey key, Iterable<AggregateUsersJoinTextWithType> values, Context context) throws IOException, InterruptedException {
+            long start = profiler.start();
+            long bytes = 0;
+
+            users.clear();
+            aggregates.clear();
+
+            // Распределим значения по типам строк в соотв. буферы
+            for (AggregateUsersJoinTextWithType value : values) {
+                bytes += value.getRecord().getLength();
+                String strValue = value.getRecord().toString();
+                switch (value.getRecordType()) {
+                    case User:
+                        users.add(strValue);
+                        break;
+                    case Aggregate:
+                        aggregates.add(strValue);
+                        break;
+                    default:
+                        throw new IllegalStateException("Unknown type: " + value.getRecordType());
+                }
+            }
+
+            countJoinSkew(context, key, users, aggregates);
+
+            // Если с обеих сторон есть строки для данного ключа (inner join)
+            if (!users.isEmpty() && !aggregates.isEmpty()) {
+                SpillableJoinBuffer.crossProduct(users, aggregates, (user, aggregate) -> {
+                    Map<String, String> row = SequenceFileUtils.parseFields(user, requiredUserFieldNames);
+                    row.putAll(SequenceFileUtils.parseFields(aggregate, groupedAggregateFieldNames));
+
+                    buffer.setLength(0);
+                    for(String fieldName : aggregateUserJoinResultFieldNames){
+                        buffer.append(row.get(fieldName)).append(SequenceFileUtils.FIELD_SEPARATOR);
+                    }
+
+                    outValue.set(buffer.toString());
+                    multipleOutputs.write(NullWritable.get(), outValue, getSettingOutputName(Integer.parseInt(row.get("Group"))) + "/part");
+                });
+            }
+
+            profiler.record(start, bytes, key::toString);
+        }
+    }
+
+    // Ключ упорядоченной мапы топа: значение рейтинга, при равенстве -- id пользователя. Порядок тот же, что и у мест
+    // в индексе рейтинга (см. exportRankingIndex), а пользователи с одинаковым значением рейтинга не затирают друг друга
+    static class RankingOrderKey implements Comparable<RankingOrderKey> {
+        final double ranking;
+        final long userId;
+
+        RankingOrderKey(double ranking, long userId) {
+            this.ranking = ranking;
+            this.userId = userId;
+        }
+
+        // функция для получения ключа из строки результата соединения с Users; null -- если рейтинг не задан
+        static RankingOrderKey fromRow(Map<String, String> row) {
+            String rankingString = row.get("RankingTimeToAnswerInSeconds");
+            if (rankingString == null) {
+                return null;
+            }
+            return new RankingOrderKey(Double.parseDouble(rankingString), Long.parseLong(row.get("AnswerOwnerUserId")));
+        }
+
+        @Override
+        public int compareTo(RankingOrderKey other) {
+            int result = Double.compare(ranking, other.ranking);
+            return result != 0 ? result : Long.compare(userId, other.userId);
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof RankingOrderKey && compareTo((RankingOrderKey) other) == 0;
+        }
+
+        @Override
+        public int hashCode() {
+            return Double.hashCode(ranking) * 31 + Long.hashCode(userId);
+        }
+    }
+
+    // Маппер для определения топа пользователей, быстрее всего отвечающих на вопросы
+    // При помощи упорядоченной мапы накапливает пользователей, в среднем быстрее всего
+    // отвечавших на вопросы среди пользователей, попавших ан данный маппер.
+    private static class TopNMapper extends Mapper<Object, Text, NullWritable, Text> {
+        private final TreeMap<RankingOrderKey, Text> topNMap = new TreeMap<>();
+
+        int topN;
+
+        @Override
+        protected void setup(Mapper.Context context) {
+            topN = Integer.parseInt(context.getConfiguration().get("topN"));
+        }
+
+        @Override
+        protected void map(Object key, Text value, Context context) {
+            Map<String, String> row = SequenceFileUtils.parseFields(value.toString(), aggregateUserJoinResultFieldNames);
+
+            RankingOrderKey rankingKey = RankingOrderKey.fromRow(row);
+            if (rankingKey != null) {
+                topNMap.put(rankingKey, new Text(value));
+
+                // если в мапе записей больше, чем нужно
+                if (topNMap.size() > topN) {
+
+                    // удаляем запись с наибольшим значением ключа
+                    topNMap.remove(topNMap.lastKey());
+                }
+            }
+        }
+
+        @Override
+        protected void cleanup(Context context) throws IOException, InterruptedException {
+            for (Text value : topNMap.values()) {
+                context.write(NullWritable.get(), value);
+            }
+        }
+    }
+
+    // Редюсер для определения топа пользователей, быстрее всего отвечающих на вопросы.
+    // Реализует точно такую же логику, как и соответствующий маппер только для лучших пользователей из каждого маппера.
+    private static class TopNReducer extends Reducer<NullWritable, Text, NullWritable, Text> {
+        private final TreeMap<RankingOrderKey, Text> topNMap = new TreeMap<>();
+
+        int topN;
+
+        @Override
+        protected void setup(Reducer.Context context) {
+            topN = Integer.parseInt(context.getConfiguration().get("topN"));
+        }
+
+        @Override
+        protected void reduce(NullWritable key, Iterable<Text> values, Context context) {
+            for (Text value : values) {
+                Map<String, String> row = SequenceFileUtils.parseFields(value.toString(), aggregateUserJoinResultFieldNames);
+
+                RankingOrderKey rankingKey = RankingOrderKey.fromRow(row);
+                if (rankingKey != null) {
+                    topNMap.put(rankingKey, new Text(value));
+
+                    if (topNMap.size() > topN) {
+                        topNMap.remove(topNMap.lastKey());
+                    }
+                }
+            }
+        }
+
+        @Override
+        protected void cleanup(Context context) throws IOException, InterruptedException {
+            for (Text value : topNMap.values()) {
+                context.write(NullWritable.get(), value);
+            }
+        }
+    }
+
+    // Имя параметра конфигурации с перцентилем (от 0 до 1), по которому строится рейтинг, например -DrankingPercentile=0.5 для медианы.
+    // Если параметр не задан, рейтинг строится по среднему времени ответа, как в запросе HIVE.
+    static final String RANKING_PERCENTILE = "rankingPercentile";
+
+    // функция для получения перцентиля, по которому строится рейтинг (NaN -- рейтинг по среднему)
+    static double getRankingPercentile(Configuration conf) {
+        String value = conf.get(RANKING_PERCENTILE);
+        if (StringUtils.isBlank(value)) {
+            return Double.NaN;
+        }
+
+        double percentile = Double.parseDouble(value);
+        if (percentile < 0 || percentile > 1) {
+            throw new IllegalArgumentException(RANKING_PERCENTILE + " must be in [0, 1]: " + value);
+        }
+        return percentile;
+    }
+
+    // Составной ключ (значение разреза, значение рейтинга, id пользователя) для построения топа внутри каждого разреза
+    // при помощи вторичной сортировки: записи одного разреза попадают в один вызов reduce уже упорядоченными по рейтингу,
+    // поэтому редюсеру не нужно держать в памяти все записи разреза. При равенстве рейтинга записи упорядочены по id
+    // пользователя -- так же, как в TopNReducer и в индексе рейтинга.
+    static class GroupRankingKey implements WritableComparable<GroupRankingKey> {
+        private final Text group = new Text();
+        private double ranking;
+        private long userId;
+
+        static {
+            WritableComparator.define(GroupRankingKey.class, new Comparator());
+        }
+
+        @Override
+        public void write(DataOutput out) throws IOException {
+            group.write(out);
+            out.writeDouble(ranking);
+            out.writeLong(userId);
+        }
+
+        @Override
+        public void readFields(DataInput in) throws IOException {
+            group.readFields(in);
+            ranking = in.readDouble();
+            userId = in.readLong();
+        }
 
-        private final Text outValue = new Text();
-        private final StringBuilder buffer = new StringBuilder();
+        @Override
+        public int compareTo(GroupRankingKey other) {
+            int result = group.compareTo(other.group);
+            if (result == 0) {
+                result = Double.compare(ranking, other.ranking);
+            }
+            return result != 0 ? result : Long.compare(userId, other.userId);
+        }
 
         @Override
-        protected void reduce(LongWritable key, Iterable<AggregateUsersJoinTextWithType> values, Context context) throws IOException, InterruptedException {
+        public boolean equals(Object other) {
+            return other instanceof GroupRankingKey && compareTo((GroupRankingKey) other) == 0;
+        }
 
-            List<String> users = new ArrayList<>();
-            List<String> aggregates = new ArrayList<>();
+        @Override
+        public int hashCode() {
+            return (group.hashCode() * 31 + Double.hashCode(ranking)) * 31 + Long.hashCode(userId);
+        }
 
-            // Распределим значения по типам строк в соотв. списки
-            for (AggregateUsersJoinTextWithType value : values) {
-                String strValue = value.getRecord().toString();
-                switch (value.getRecordType()) {
-                    case User:
-                        users.add(strValue);
-                        break;
-                    case Aggregate:
-                        aggregates.add(strValue);
-                        break;
-                    default:
-                        throw new IllegalStateException("Unknown type: " + value.getRecordType());
-                }
-            }
+        Text getGroup() {
+            return group;
+        }
 
-            // Если с обеих сторон есть строки для данного ключа (inner join)
-            if (users.size() > 0 && aggregates.size() > 0) {
-                for (String user : users) {
-                    for (String aggregate : aggregates) {
+        void set(String group, double ranking, long userId) {
+            this.group.set(group);
+            this.ranking = ranking;
+            this.userId = userId;
+        }
 
-                        Map<String, String> row = SequenceFileUtils.parseFields(user, requiredUserFieldNames);
-                        row.putAll(SequenceFileUtils.parseFields(aggregate, aggregateFieldNames));
+        // Функция для сравнения значений разреза сериализованных ключей, начинающихся в s1 и s2. Возвращает результат
+        // сравнения, а в groupEnds -- смещения концов значений разреза (т.е. начал значений рейтинга)
+        static int compareGroups(byte[] b1, int s1, byte[] b2, int s2, int[] groupEnds) throws IOException {
+            int lengthSize1 = WritableUtils.decodeVIntSize(b1[s1]);
+            int lengthSize2 = WritableUtils.decodeVIntSize(b2[s2]);
+            int length1 = WritableComparator.readVInt(b1, s1);
+            int length2 = WritableComparator.readVInt(b2, s2);
+
+            if (groupEnds != null) {
+                groupEnds[0] = s1 + lengthSize1 + length1;
+                groupEnds[1] = s2 + lengthSize2 + length2;
+            }
+            return WritableComparator.compareBytes(b1, s1 + lengthSize1, length1, b2, s2 + lengthSize2, length2);
+        }
 
-                        buffer.setLength(0);
-                        for(String fieldName : aggregateUserJoinResultFieldNames){
-                            buffer.append(row.get(fieldName)).append(SequenceFileUtils.FIELD_SEPARATOR);
-                        }
+        // Компаратор сериализованных ключей: байты значения разреза, затем значение рейтинга (double в big-endian),
+        // затем id пользователя
+        static class Comparator extends WritableComparator {
+            Comparator() {
+                super(GroupRankingKey.class);
+            }
 
-                        outValue.set(buffer.toString());
-                        context.write(NullWritable.get(), outValue);
+            @Override
+            public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2) {
+                try {
+                    int[] groupEnds = new int[2];
+                    int result = compareGroups(b1, s1, b2, s2, groupEnds);
+                    if (result != 0) {
+                        return result;
                     }
+
+                    result = Double.compare(readDouble(b1, groupEnds[0]), readDouble(b2, groupEnds[1]));
+                    return result != 0 ? result : Long.compare(readLong(b1, groupEnds[0] + 8), readLong(b2, groupEnds[1] + 8));
+                } catch (IOException ex) {
+                    throw new IllegalArgumentException(ex);
                 }
             }
         }
     }
 
-    // Маппер для определения топа пользователей, быстрее всего отвечающих на вопросы
-    // При помощи упорядоченной мапы накапливает пользователей, в среднем быстрее всего
-    // отвечавших на вопросы среди пользователей, попавших ан данный маппер.
-    private static class TopNMapper extends Mapper<Object, Text, NullWritable, Text> {
-        private final TreeMap<Double, Text> topNMap = new TreeMap<>();
+    // Партиционер, отправляющий все записи одного разреза в один редюсер независимо от значения рейтинга
+    static class GroupPartitioner extends Partitioner<GroupRankingKey, Text> {
+        @Override
+        public int getPartition(GroupRankingKey key, Text value, int numPartitions) {
+            return (key.getGroup().hashCode() & Integer.MAX_VALUE) % numPartitions;
+        }
+    }
 
-        int topN;
+    // Группирующий компаратор, объединяющий в один вызов reduce все записи одного разреза.
+    // Сериализованные ключи сравнивает только по байтам значения разреза, не разбирая их
+    static class GroupComparator extends WritableComparator {
+        GroupComparator() {
+            super(GroupRankingKey.class, true);
+        }
 
         @Override
-        protected void setup(Mapper.Context context) {
-            topN = Integer.parseInt(context.getConfiguration().get("topN"));
+        public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2) {
+            try {
+                return GroupRankingKey.compareGroups(b1, s1, b2, s2, null);
+            } catch (IOException ex) {
+                throw new IllegalArgumentException(ex);
+            }
         }
 
         @Override
-        protected void map(Object key, Text value, Context context) {
-            Map<String, String> row = SequenceFileUtils.parseFields(value.toString(), aggregateUserJoinResultFieldNames);
+        @SuppressWarnings("rawtypes")
+        public int compare(WritableComparable a, WritableComparable b) {
+            return ((GroupRankingKey) a).getGroup().compareTo(((GroupRankingKey) b).getGroup());
+        }
+    }
 
-            String reputationString = row.get("AverageTimeToAnswerInSeconds");
-            if (reputationString != null) {
-                topNMap.put(Double.parseDouble(reputationString), new Text(value));
+    // Маппер для определения топа пользователей внутри каждого разреза (например, тега).
+    // Переносит значение разреза и рейтинг в составной ключ, строка аггрегатов передается как есть
+    private static class TopNPerGroupMapper extends Mapper<Object, Text, GroupRankingKey, Text> {
+        private final GroupRankingKey outKey = new GroupRankingKey();
 
-                // если в мапе записей больше, чем нужно
-                if (topNMap.size() > topN) {
+        @Override
+        protected void map(Object key, Text value, Context context) throws IOException, InterruptedException {
+            Map<String, String> row = SequenceFileUtils.parseFields(value.toString(), groupedAggregateFieldNames);
 
-                    // удаляем запись с наибольшим значением ключа
-                    topNMap.remove(topNMap.lastKey());
-                }
+            String rankingString = row.get("RankingTimeToAnswerInSeconds");
+            if (StringUtils.isNotBlank(rankingString)) {
+                outKey.set(row.get("Group"), Double.parseDouble(rankingString), Long.parseLong(row.get("AnswerOwnerUserId")));
+                context.write(outKey, value);
             }
         }
+    }
+
+    // Маппер для построения топов всех наборов параметров фильтра "накруток" одной задачей: разрезом служит набор,
+    // т.е. поддиректория, в которую соединение с Users записало его строки (см. getSettingOutputName)
+    private static class TopNPerSettingMapper extends Mapper<Object, Text, GroupRankingKey, Text> {
+        private final GroupRankingKey outKey = new GroupRankingKey();
+        private String setting;
 
         @Override
-        protected void cleanup(Context context) throws IOException, InterruptedException {
-            for (Text value : topNMap.values()) {
-                context.write(NullWritable.get(), value);
+        protected void setup(Context context) {
+            setting = ((FileSplit) context.getInputSplit()).getPath().getParent().getName();
+        }
+
+        @Override
+        protected void map(Object key, Text value, Context context) throws IOException, InterruptedException {
+            RankingOrderKey rankingKey = RankingOrderKey.fromRow(SequenceFileUtils.parseFields(value.toString(), aggregateUserJoinResultFieldNames));
+            if (rankingKey != null) {
+                outKey.set(setting, rankingKey.ranking, rankingKey.userId);
+                context.write(outKey, value);
             }
         }
     }
 
-    // Редюсер для определения топа пользователей, быстрее всего отвечающих на вопросы.
-    // Реализует точно такую же логику, как и соответствующий маппер только для лучших пользователей из каждого маппера.
-    private static class TopNReducer extends Reducer<NullWritable, Text, NullWritable, Text> {
-        private final TreeMap<Double, Text> topNMap = new TreeMap<>();
-
+    // Редюсер для определения топа пользователей внутри каждого разреза.
+    // Записи разреза приходят упорядоченными по рейтингу, поэтому достаточно записать первые topN из них.
+    private static class TopNPerGroupReducer extends Reducer<GroupRankingKey, Text, NullWritable, Text> {
         int topN;
 
         @Override
-        protected void setup(Reducer.Context context) {
+        protected void setup(Context context) {
             topN = Integer.parseInt(context.getConfiguration().get("topN"));
         }
 
         @Override
-        protected void reduce(NullWritable key, Iterable<Text> values, Context context) {
+        protected void reduce(GroupRankingKey key, Iterable<Text> values, Context context) throws IOException, InterruptedException {
+            int written = 0;
             for (Text value : values) {
-                Map<String, String> row = SequenceFileUtils.parseFields(value.toString(), aggregateUserJoinResultFieldNames);
-
-                String reputationString = row.get("AverageTimeToAnswerInSeconds");
-                if (reputationString != null) {
-                    topNMap.put(Double.parseDouble(reputationString), new Text(value));
-
-                    if (topNMap.size() > topN) {
-                        topNMap.remove(topNMap.lastKey());
-                    }
+                if (written++ >= topN) {
+                    break;
                 }
+                write(key, value, context);
             }
         }
 
+        protected void write(GroupRankingKey key, Text value, Context context) throws IOException, InterruptedException {
+            context.write(NullWritable.get(), value);
+        }
+    }
+
+    // Редюсер для построения топов всех наборов параметров фильтра "накруток": топ каждого набора пишется в свою
+    // поддиректорию, которую драйвер затем переносит в <output_path>_setting_<i>
+    private static class TopNPerSettingReducer extends TopNPerGroupReducer {
+        private MultipleOutputs<NullWritable, Text> multipleOutputs;
+
+        @Override
+        protected void setup(Context context) {
+            super.setup(context);
+            multipleOutputs = new MultipleOutputs<>(context);
+        }
+
         @Override
         protected void cleanup(Context context) throws IOException, InterruptedException {
-            for (Text value : topNMap.values()) {
-                context.write(NullWritable.get(), value);
-            }
+            multipleOutputs.close();
+        }
+
+        @Override
+        protected void write(GroupRankingKey key, Text value, Context context) throws IOException, InterruptedException {
+            multipleOutputs.write(NullWritable.get(), value, key.getGroup() + "/part");
         }
     }
 
@@ -714,42 +2046,236 @@ public class FastestAnswerers extends Configured implements Tool {
         }
     }
 
-    // метод для запуска задачи по фильтрации вопросов из таблицы Posts
-    public static boolean filterQuestions(Configuration conf, Path inputPath, Path outputPath) throws Exception {
-        deleteFolderIfExists(conf, outputPath);
+    // функция для создания папки на HDFS, если ее нет: результаты разрезов пишутся лениво, и если в разрез ничего
+    // не попало, то папки нет, а следующей стадии нужен пусть и пустой, но существующий вход
+    private static void createFolderIfNotExists (Configuration conf, Path path) throws Exception {
+        FileSystem fs = FileSystem.get(conf);
+        if(!fs.exists(path)) {
+            fs.mkdirs(path);
+        }
+    }
 
-        Job job = Job.getInstance(conf, "Filter questions");
-        job.setJarByClass(FastestAnswerers.class);
-        job.setMapperClass(QuestionsMapper.class);
+    static final String SMALL_STAGE_MAX_BYTES = "smallStageMaxBytes";
+    static final String SMALL_STAGE_MODE = "smallStageMode";
+
+    static final String MAP_OUTPUT_CODEC = "mapOutputCodec";
+    static final String STAGING_CODEC = "stagingCodec";
+    static final String REPORT_PATH = "reportPath";
+
+    // функция для получения класса кодека по его имени; null -- без сжатия
+    static Class<? extends CompressionCodec> getCodecClass(String name) {
+        switch (name) {
+            case "none":
+                return null;
+            case "default":
+                return DefaultCodec.class;
+            case "deflate":
+                return DeflateCodec.class;
+            case "bzip2":
+                return BZip2Codec.class;
+            default:
+                // gzip, snappy, lz4 и т.п. в SequenceFile и при передаче между map и reduce требуют нативных библиотек
+                throw new IllegalArgumentException("Unsupported codec: " + name + ", expected one of none, default, deflate, bzip2");
+        }
+    }
 
-        job.setOutputKeyClass(NullWritable.class);
-        job.setOutputValueClass(Text.class);
+    // функция для получения значения параметра сжатия для стадии: сначала <name>.<stage>, затем общий <name>
+    private static Class<? extends CompressionCodec> getStageCodecClass(Configuration conf, String name, String stage) {
+        return getCodecClass(conf.get(name + "." + stage, conf.get(name, "none")));
+    }
 
-        FileInputFormat.addInputPath(job, inputPath);
+    // Метод для настройки сжатия данных стадии: между map и reduce и, для промежуточных результатов (staging = true),
+    // сжатие выходных SequenceFile блоками -- так сжимается сразу много записей, что для коротких текстовых строк
+    // дает гораздо лучший коэффициент сжатия, чем сжатие каждой записи отдельно
+    private static void configureCompression(Job job, String stage, boolean staging) {
+        Configuration conf = job.getConfiguration();
 
-        job.setOutputFormatClass(SequenceFileOutputFormat.class);
-        SequenceFileOutputFormat.setOutputPath(job, outputPath);
+        Class<? extends CompressionCodec> mapOutputCodec = getStageCodecClass(conf, MAP_OUTPUT_CODEC, stage);
+        if (mapOutputCodec != null) {
+            conf.setBoolean("mapreduce.map.output.compress", true);
+            conf.setClass("mapreduce.map.output.compress.codec", mapOutputCodec, CompressionCodec.class);
+        }
+
+        Class<? extends CompressionCodec> stagingCodec = getStageCodecClass(conf, STAGING_CODEC, stage);
+        if (staging && stagingCodec != null) {
+            SequenceFileOutputFormat.setCompressOutput(job, true);
+            SequenceFileOutputFormat.setOutputCompressorClass(job, stagingCodec);
+            SequenceFileOutputFormat.setOutputCompressionType(job, SequenceFile.CompressionType.BLOCK);
+        }
+    }
+
+    // Метод для записи отчета о выполненной стадии в <reportPath>/<имя папки результата стадии>
+    private static void writeStageReport(Job job, String stage, long millis) throws Exception {
+        Configuration conf = job.getConfiguration();
+        Path outputPath = FileOutputFormat.getOutputPath(job);
+        Counters counters = job.getCounters();
+
+        Map<String, String> report = new LinkedHashMap<>();
+        report.put("stage", stage);
+        report.put("job", job.getJobName());
+        report.put("output", outputPath.toString());
+        report.put("millis", Long.toString(millis));
+        report.put("mapOutputCodec", conf.getBoolean("mapreduce.map.output.compress", false) ? conf.get("mapreduce.map.output.compress.codec") : "none");
+        report.put("stagingCodec", FileOutputFormat.getCompressOutput(job) ? conf.get(FileOutputFormat.COMPRESS_CODEC) : "none");
+        // размер данных между map и reduce: сериализованные записи и то, что реально записано на диск и передано по сети
+        report.put("mapOutputRawBytes", Long.toString(counters.findCounter(TaskCounter.MAP_OUTPUT_BYTES).getValue()));
+        report.put("mapOutputCompressedBytes", Long.toString(counters.findCounter(TaskCounter.MAP_OUTPUT_MATERIALIZED_BYTES).getValue()));
+        FileSystem fs = outputPath.getFileSystem(conf);
+        report.put("outputBytes", Long.toString(fs.exists(outputPath) ? fs.getContentSummary(outputPath).getLength() : 0));
+        // "перекос" ключей в стадиях соединения
+        for (JoinCounters counter : JoinCounters.values()) {
+            long value = counters.findCounter(counter).getValue();
+            if (value != 0) {
+                report.put(counter.name(), Long.toString(value));
+            }
+        }
+        // перцентили времени обработки и размера записей (если включено профилирование)
+        RecordProfiler.appendPercentiles(counters, report);
+
+        StringBuilder text = new StringBuilder();
+        for (Map.Entry<String, String> entry : report.entrySet()) {
+            text.append(entry.getKey()).append('\t').append(entry.getValue()).append('\n');
+        }
+        System.out.print(text);
+
+        String reportPath = conf.get(REPORT_PATH);
+        if (StringUtils.isNotBlank(reportPath)) {
+            Path stageReportPath = new Path(reportPath, outputPath.getName());
+            try (FSDataOutputStream out = stageReportPath.getFileSystem(conf).create(stageReportPath, true)) {
+                out.write(text.toString().getBytes(StandardCharsets.UTF_8));
+            }
+        }
+
+        // самые медленные записи всех задач стадии сливаются в один файл отчета
+        String slowRowsPath = conf.get(RecordProfiler.SLOW_ROWS_PATH);
+        if (StringUtils.isNotBlank(slowRowsPath)) {
+            List<String> slowRows = RecordProfiler.mergeSlowRows(conf, new Path(slowRowsPath), conf.getInt(RecordProfiler.SLOW_ROWS_COUNT, 20));
+            if (!slowRows.isEmpty()) {
+                Path slowRowsReportPath = new Path(reportPath, outputPath.getName() + "_slow_rows");
+                try (FSDataOutputStream out = slowRowsReportPath.getFileSystem(conf).create(slowRowsReportPath, true)) {
+                    out.write("micros\tbytes\tclass\ttask\tid\n".getBytes(StandardCharsets.UTF_8));
+                    for (String row : slowRows) {
+                        out.write((row + "\n").getBytes(StandardCharsets.UTF_8));
+                    }
+                }
+            }
+            deleteFolderIfExists(conf, new Path(slowRowsPath));
+        }
+    }
+
+    // Метод для запуска стадии. Если суммарный размер входа стадии не больше smallStageMaxBytes, задача выполняется
+    // без запроса контейнеров у YARN: в процессе драйвера (LocalJobRunner) или одной uber-задачей. Классы маппера и
+    // редюсера, число редюсеров и форматы не меняются, поэтому результат такой же, как при обычном запуске, а экономится
+    // время на запуск контейнеров, которое у маленьких стадий (соединение с Users, топ) больше времени самой обработки.
+    private static boolean runStage(Job job, String stage, Path... inputPaths) throws Exception {
+        Configuration conf = job.getConfiguration();
+        long maxBytes = conf.getLong(SMALL_STAGE_MAX_BYTES, 0);
+
+        if (maxBytes > 0) {
+            long inputBytes = 0;
+            for (Path inputPath : inputPaths) {
+                FileSystem fs = inputPath.getFileSystem(conf);
+                if (fs.exists(inputPath)) {
+                    inputBytes += fs.getContentSummary(inputPath).getLength();
+                }
+            }
+
+            if (inputBytes <= maxBytes) {
+                String mode = conf.get(SMALL_STAGE_MODE, "local");
+                if ("uber".equals(mode) && job.getNumReduceTasks() <= 1) {
+                    conf.setBoolean("mapreduce.job.ubertask.enable", true);
+                    conf.setLong("mapreduce.job.ubertask.maxbytes", maxBytes);
+                } else {
+                    conf.set("mapreduce.framework.name", "local");
+                    mode = "local";
+                }
+                System.out.println(job.getJobName() + ": input " + inputBytes + " bytes, running in " + mode + " mode");
+            }
+        }
+
+        // задачи пишут самые медленные записи во временную папку рядом с отчетом
+        String reportPath = conf.get(REPORT_PATH);
+        if (conf.getBoolean(RecordProfiler.INSTRUMENTATION, false) && StringUtils.isNotBlank(reportPath)) {
+            Path slowRowsPath = new Path(reportPath, "_" + FileOutputFormat.getOutputPath(job).getName() + "_slow_rows");
+            deleteFolderIfExists(conf, slowRowsPath);
+            conf.set(RecordProfiler.SLOW_ROWS_PATH, slowRowsPath.toString());
+        }
+
+        long start = System.currentTimeMillis();
+        if (!job.waitForCompletion(true)) {
+            return false;
+        }
+        writeStageReport(job, stage, System.currentTimeMillis() - start);
+        return true;
+    }
 
-        return job.waitForCompletion(true);
+    // Имя запроса -- имя поддиректории с его результатом и суффикс пути <output_path>_<имя>, поэтому имена должны быть
+    // уникальными (иначе запросы пишут в одну и ту же папку, в том числе в папки вопросов и ответов) и не должны
+    // совпадать с суффиксами путей других результатов запуска
+    private static final String[] RESERVED_POSTS_QUERY_NAMES = new String[] { "stage", "report" };
+    private static final String[] RESERVED_POSTS_QUERY_PREFIXES = new String[] { "setting_", "by_" };
+
+    // функция для проверки имен запросов над Posts; при ошибке бросает IllegalArgumentException
+    static void checkPostsQueryNames(Configuration conf, List<Class<? extends PostsQuery>> queries) {
+        Set<String> names = new HashSet<>();
+        for (Class<? extends PostsQuery> queryClass : queries) {
+            String name = ReflectionUtils.newInstance(queryClass, conf).getName();
+            if (name == null || !name.matches("[A-Za-z0-9][A-Za-z0-9_]*")) {
+                throw new IllegalArgumentException("Invalid posts query name " + name + " in " + queryClass.getName());
+            }
+            if (!names.add(name)) {
+                throw new IllegalArgumentException("Duplicate posts query name " + name + " in " + queryClass.getName());
+            }
+            for (String reserved : RESERVED_POSTS_QUERY_NAMES) {
+                if (name.equals(reserved)) {
+                    throw new IllegalArgumentException("Reserved posts query name " + name + " in " + queryClass.getName());
+                }
+            }
+            for (String prefix : RESERVED_POSTS_QUERY_PREFIXES) {
+                if (name.startsWith(prefix)) {
+                    throw new IllegalArgumentException("Reserved posts query name prefix " + prefix + " in " + queryClass.getName());
+                }
+            }
+        }
     }
 
-    // метод для запуска задачи по фильтрации ответов из таблицы Posts
-    public static boolean filterAnswers(Configuration conf, Path inputPath, Path outputPath) throws Exception {
+    // Метод для запуска задачи по фильтрации таблицы Posts сразу по нескольким запросам за один проход.
+    // Задача состоит только из map-стадии, результат каждого запроса -- в поддиректории outputPath с именем запроса
+    public static boolean filterPosts(Configuration conf, Path inputPath, Path outputPath, List<Class<? extends PostsQuery>> queries) throws Exception {
+        checkPostsQueryNames(conf, queries);
         deleteFolderIfExists(conf, outputPath);
 
-        Job job = Job.getInstance(conf, "Filter answers");
+        Job job = Job.getInstance(conf, "Filter posts");
         job.setJarByClass(FastestAnswerers.class);
-        job.setMapperClass(AnswersMapper.class);
+        job.setMapperClass(PostsFilterMapper.class);
+
+        job.setNumReduceTasks(0);
 
         job.setOutputKeyClass(NullWritable.class);
         job.setOutputValueClass(Text.class);
 
         FileInputFormat.addInputPath(job, inputPath);
 
-        job.setOutputFormatClass(SequenceFileOutputFormat.class);
+        LazyOutputFormat.setOutputFormatClass(job, SequenceFileOutputFormat.class);
         SequenceFileOutputFormat.setOutputPath(job, outputPath);
 
-        return job.waitForCompletion(true);
+        String[] queryClassNames = new String[queries.size()];
+        for (int i = 0; i < queries.size(); ++i) {
+            queryClassNames[i] = queries.get(i).getName();
+        }
+        job.getConfiguration().setStrings(POSTS_QUERIES, queryClassNames);
+
+        // результаты дополнительных запросов -- итоговые, а итоговые результаты не сжимаются, поэтому при их наличии
+        // выход стадии не сжимается целиком (сжатие между map и reduce у стадии без reduce не используется)
+        boolean onlyStagingQueries = true;
+        for (Class<? extends PostsQuery> query : queries) {
+            if (query != QuestionsQuery.class && query != AnswersQuery.class) {
+                onlyStagingQueries = false;
+            }
+        }
+        configureCompression(job, "filter", onlyStagingQueries);
+
+        return runStage(job, "filter", inputPath);
     }
 
     // метод для запуска задачи по по соединению таблиц Questions и Answers
@@ -763,7 +2289,7 @@ public class FastestAnswerers extends Configured implements Tool {
 
         job.setNumReduceTasks(10);
 
-        job.setMapOutputKeyClass(LongWritable.class);
+        job.setMapOutputKeyClass(VarLongKey.class);
         job.setMapOutputValueClass(TextWithType.class);
 
         job.setOutputKeyClass(NullWritable.class);
@@ -775,7 +2301,9 @@ public class FastestAnswerers extends Configured implements Tool {
         FileOutputFormat.setOutputPath(job, joinPath);
         job.setOutputFormatClass(SequenceFileOutputFormat.class);
 
-        return job.waitForCompletion(true);
+        configureCompression(job, "join", true);
+
+        return runStage(job, "join", questionsPath, answersPath);
     }
 
     // метод для запуска задачи по аггрегации числа правильных ответов пользователя на вопросы и среднего времени ответа
@@ -787,8 +2315,8 @@ public class FastestAnswerers extends Configured implements Tool {
         job.setJarByClass(FastestAnswerers.class);
         job.setMapperClass(AggregationMapper.class);
 
-        job.setMapOutputKeyClass(Text.class);
-        job.setMapOutputValueClass(Stats.class);
+        job.setMapOutputKeyClass(AggregationKey.class);
+        job.setMapOutputValueClass(SettingsStats.class);
 
         job.setCombinerClass(AggregationCombiner.class);
         job.setReducerClass(AggregationReducer.class);
@@ -799,10 +2327,13 @@ public class FastestAnswerers extends Configured implements Tool {
         job.setOutputKeyClass(NullWritable.class);
         job.setOutputValueClass(Text.class);
 
-        job.setOutputFormatClass(SequenceFileOutputFormat.class);
+        // результаты разрезов пишутся через MultipleOutputs в поддиректории, основной выход не используется
+        LazyOutputFormat.setOutputFormatClass(job, SequenceFileOutputFormat.class);
         SequenceFileOutputFormat.setOutputPath(job, outputPath);
 
-        return job.waitForCompletion(true);
+        configureCompression(job, "aggregation", true);
+
+        return runStage(job, "aggregation", inputPath);
     }
 
     // метод для запуска задачи по соединениию таблицы с аггрегатами с таблицей Users
@@ -816,7 +2347,7 @@ public class FastestAnswerers extends Configured implements Tool {
 
         job.setNumReduceTasks(10);
 
-        job.setMapOutputKeyClass(LongWritable.class);
+        job.setMapOutputKeyClass(VarLongKey.class);
         job.setMapOutputValueClass(AggregateUsersJoinTextWithType.class);
 
         job.setOutputKeyClass(NullWritable.class);
@@ -825,10 +2356,13 @@ public class FastestAnswerers extends Configured implements Tool {
         MultipleInputs.addInputPath(job, usersPath, TextInputFormat.class, UserIdMapper.class);
         MultipleInputs.addInputPath(job, aggregatesPath, SequenceFileInputFormat.class, AggregateAnswerOwnerUserIdMapper.class);
 
+        // результаты наборов параметров пишутся через MultipleOutputs в поддиректории, основной выход не используется
+        LazyOutputFormat.setOutputFormatClass(job, SequenceFileOutputFormat.class);
         FileOutputFormat.setOutputPath(job, joinPath);
-        job.setOutputFormatClass(SequenceFileOutputFormat.class);
 
-        return job.waitForCompletion(true);
+        configureCompression(job, "usersJoin", true);
+
+        return runStage(job, "usersJoin", usersPath, aggregatesPath);
     }
 
     // метод для запуска задачи по нахождению нескольких пользователей, быстрее всех правильно отвечающих на вопросы
@@ -854,7 +2388,182 @@ public class FastestAnswerers extends Configured implements Tool {
 
         job.getConfiguration().set("topN", Integer.toString(topN));
 
-        return job.waitForCompletion(true);
+        configureCompression(job, "topN", false);
+
+        return runStage(job, "topN", inputPath);
+    }
+
+    // метод для запуска задачи по нахождению нескольких пользователей, быстрее всех правильно отвечающих на вопросы, внутри каждого разреза
+    boolean topNAnswerersPerGroup (Configuration conf, Path inputPath, Path outputPath, int topN, String jobName) throws Exception {
+        deleteFolderIfExists(conf, outputPath);
+
+        Job job = Job.getInstance(conf, jobName);
+
+        job.setJarByClass(TopNPerGroupMapper.class);
+        job.setMapperClass(TopNPerGroupMapper.class);
+        job.setReducerClass(TopNPerGroupReducer.class);
+
+        job.setNumReduceTasks(10);
+
+        job.setMapOutputKeyClass(GroupRankingKey.class);
+        job.setMapOutputValueClass(Text.class);
+
+        job.setPartitionerClass(GroupPartitioner.class);
+        job.setGroupingComparatorClass(GroupComparator.class);
+
+        job.setInputFormatClass(SequenceFileInputFormat.class);
+        SequenceFileInputFormat.setInputPaths(job, inputPath);
+
+        job.setOutputKeyClass(NullWritable.class);
+        job.setOutputValueClass(Text.class);
+
+        job.setOutputFormatClass(SequenceFileOutputFormat.class);
+        SequenceFileOutputFormat.setOutputPath(job, outputPath);
+
+        job.getConfiguration().set("topN", Integer.toString(topN));
+
+        configureCompression(job, "topNPerGroup", false);
+
+        return runStage(job, "topNPerGroup", inputPath);
+    }
+
+    // метод для запуска задачи по построению топов всех наборов параметров фильтра "накруток" (результаты соединения
+    // с Users в поддиректориях inputPath) при помощи вторичной сортировки, топ каждого набора -- в поддиректории outputPath
+    boolean topNAnswerersPerSetting (Configuration conf, Path inputPath, Path outputPath, int settingsCount, int topN) throws Exception {
+        deleteFolderIfExists(conf, outputPath);
+
+        Job job = Job.getInstance(conf, "Top N answerers per cheat filter setting");
+
+        job.setJarByClass(TopNPerSettingMapper.class);
+        job.setMapperClass(TopNPerSettingMapper.class);
+        job.setReducerClass(TopNPerSettingReducer.class);
+
+        job.setNumReduceTasks(10);
+
+        job.setMapOutputKeyClass(GroupRankingKey.class);
+        job.setMapOutputValueClass(Text.class);
+
+        job.setPartitionerClass(GroupPartitioner.class);
+        job.setGroupingComparatorClass(GroupComparator.class);
+
+        job.setInputFormatClass(SequenceFileInputFormat.class);
+        Path[] settingPaths = new Path[settingsCount];
+        for (int i = 0; i < settingsCount; ++i) {
+            settingPaths[i] = new Path(inputPath, getSettingOutputName(i));
+            SequenceFileInputFormat.addInputPath(job, settingPaths[i]);
+        }
+
+        job.setOutputKeyClass(NullWritable.class);
+        job.setOutputValueClass(Text.class);
+
+        LazyOutputFormat.setOutputFormatClass(job, SequenceFileOutputFormat.class);
+        SequenceFileOutputFormat.setOutputPath(job, outputPath);
+
+        job.getConfiguration().set("topN", Integer.toString(topN));
+
+        configureCompression(job, "topN", false);
+
+        return runStage(job, "topN", settingPaths);
+    }
+
+    // функция для получения пути результата для заданного набора параметров фильтра "накруток"; для основного набора -- сам путь
+    private static Path getSettingPath(Path path, int settingIndex) {
+        return settingIndex == 0 ? path : new Path(path + "_setting_" + settingIndex);
+    }
+
+    // функция для получения пути, по которому записывается топ пользователей внутри разреза
+    private static Path getGroupingOutputPath(Path outputPath, Grouping grouping) {
+        return new Path(outputPath + "_by_" + grouping.getOutputName());
+    }
+
+    // Имя параметра конфигурации с путем, по которому выгружается бинарный индекс рейтинга (если не задан -- не выгружается)
+    static final String INDEX_PATH = "indexPath";
+
+    // Метод для выгрузки результата соединения аггрегатов с Users в бинарный индекс рейтинга (см. RankingIndex).
+    // Выполняется прямо в драйвере: данные уже отфильтрованы порогом числа ответов и содержат по одной строке на пользователя.
+    // Из каждой строки разбираются только поля, которые попадают в индекс, и хранятся сразу в виде записей индекса.
+    static void exportRankingIndex(Configuration conf, Path inputPath, Path indexPath) throws Exception {
+        FileSystem fs = inputPath.getFileSystem(conf);
+
+        List<String> fieldNames = Arrays.asList(aggregateUserJoinResultFieldNames);
+        int userIdField = fieldNames.indexOf("AnswerOwnerUserId");
+        int displayNameField = fieldNames.indexOf("DisplayName");
+        int averageField = fieldNames.indexOf("AverageTimeToAnswerInSeconds");
+        int rankingField = fieldNames.indexOf("RankingTimeToAnswerInSeconds");
+        int countField = fieldNames.indexOf("TotalAnswersCount");
+
+        List<RankingIndex.Entry> entries = new ArrayList<>();
+        Text value = new Text();
+        for (FileStatus status : fs.listStatus(inputPath, path -> !path.getName().startsWith("_") && !path.getName().startsWith("."))) {
+            try (SequenceFile.Reader reader = new SequenceFile.Reader(conf, SequenceFile.Reader.file(status.getPath()))) {
+                while (reader.next(NullWritable.get(), value)) {
+                    String[] fields = StringUtils.splitPreserveAllTokens(value.toString(), SequenceFileUtils.FIELD_SEPARATOR);
+                    entries.add(new RankingIndex.Entry(
+                            Long.parseLong(fields[userIdField]),
+                            fields[displayNameField],
+                            Double.parseDouble(fields[averageField]),
+                            Double.parseDouble(fields[rankingField]),
+                            Integer.parseInt(fields[countField]),
+                            0));
+                }
+            }
+        }
+
+        // место в рейтинге -- как в топе: по значению, по которому строится рейтинг, при равенстве -- по id пользователя
+        entries.sort(Comparator
+                .comparingDouble(RankingIndex.Entry::getRankingValue)
+                .thenComparingLong(RankingIndex.Entry::getUserId));
+
+        for (int i = 0; i < entries.size(); ++i) {
+            entries.set(i, entries.get(i).withRank(i + 1));
+        }
+
+        try (FSDataOutputStream out = indexPath.getFileSystem(conf).create(indexPath, true)) {
+            RankingIndex.write(entries, out);
+        }
+
+        System.out.println("ranking index: " + entries.size() + " users written to " + indexPath);
+    }
+
+    // Метод для слияния скетчей, записанных задачами соединения, и записи оценок в отчет (<reportPath>/sketches).
+    // Выполняется прямо в драйвере: скетчей по одному набору на задачу, и каждый занимает несколько килобайт.
+    static void mergeSketches(Configuration conf, Path sketchPath) throws Exception {
+        FileSystem fs = sketchPath.getFileSystem(conf);
+        if (!fs.exists(sketchPath)) {
+            return;
+        }
+
+        Map<String, HyperLogLog> sketches = new TreeMap<>();
+        Text name = new Text();
+        for (FileStatus status : fs.listStatus(sketchPath, path -> !path.getName().startsWith("_") && !path.getName().startsWith("."))) {
+            try (SequenceFile.Reader reader = new SequenceFile.Reader(conf, SequenceFile.Reader.file(status.getPath()))) {
+                HyperLogLog sketch = new HyperLogLog();
+                while (reader.next(name, sketch)) {
+                    HyperLogLog merged = sketches.get(name.toString());
+                    if (merged == null) {
+                        sketches.put(name.toString(), sketch);
+                        sketch = new HyperLogLog();
+                    } else {
+                        merged.merge(sketch);
+                    }
+                }
+            }
+        }
+
+        StringBuilder text = new StringBuilder();
+        // в режиме быстрой оценки скетчи построены только по выборке вопросов
+        text.append("sampleRate").append('\t').append(getSampleRate(conf)).append('\n');
+        for (Map.Entry<String, HyperLogLog> entry : sketches.entrySet()) {
+            text.append(entry.getKey()).append('\t').append(entry.getValue().estimate()).append('\n');
+        }
+        System.out.print(text);
+
+        String reportPath = conf.get(REPORT_PATH);
+        if (StringUtils.isNotBlank(reportPath)) {
+            try (FSDataOutputStream out = fs.create(new Path(reportPath, "sketches"), true)) {
+                out.write(text.toString().getBytes(StandardCharsets.UTF_8));
+            }
+        }
     }
 
     private void cleanup(Configuration conf, Path... tempPaths){
@@ -895,12 +2604,49 @@ public class FastestAnswerers extends Configured implements Tool {
         System.out.println("top N fastest answerers: " + runTopN);
         System.out.println("top N: " + topN);
 
+        Configuration conf = getConf();
+
+        double rankingPercentile = getRankingPercentile(conf);
+        System.out.println("ranking by: " + (Double.isNaN(rankingPercentile) ? "average" : "percentile " + rankingPercentile));
+
+        for (Grouping grouping : Grouping.values()) {
+            if (grouping != Grouping.User) {
+                System.out.println("top N per " + grouping.getOutputName() + ": " + (grouping.isEnabled(conf) ? Integer.toString(grouping.getTopN(conf)) : "disabled"));
+            }
+        }
+
+        double sampleRate = getSampleRate(conf);
+        System.out.println("sample rate: " + sampleRate);
+        if (sampleRate < 1) {
+            System.out.println("sample min answers: " + getSampleMinAnswers(conf));
+        }
+
+        List<CheatFilterSetting> settings = CheatFilterSetting.fromConfiguration(conf);
+        System.out.println("cheat filter settings:");
+        for (int i = 0; i < settings.size(); ++i) {
+            System.out.println(i + ": " + settings.get(i));
+        }
+
+        // вопросы и ответы отбираются одним проходом по Posts.xml вместе с дополнительными запросами
+        List<Class<? extends PostsQuery>> postsQueries = new ArrayList<>();
+        postsQueries.add(QuestionsQuery.class);
+        postsQueries.add(AnswersQuery.class);
+        List<PostsQuery> extraPostsQueries = new ArrayList<>();
+        for (Class<?> queryClass : conf.getClasses(POSTS_QUERIES)) {
+            Class<? extends PostsQuery> postsQueryClass = queryClass.asSubclass(PostsQuery.class);
+            postsQueries.add(postsQueryClass);
+            extraPostsQueries.add(ReflectionUtils.newInstance(postsQueryClass, conf));
+        }
+
         Path stagingPath = new Path(outputPath + "_stage");
-        Path questionsPath = new Path(stagingPath, "questions");
-        Path answersPath = new Path(stagingPath, "answers");
+        Path postsFilterPath = new Path(stagingPath, "posts");
+        Path questionsPath = new Path(postsFilterPath, new QuestionsQuery().getName());
+        Path answersPath = new Path(postsFilterPath, new AnswersQuery().getName());
         Path questionsAnswersJoinPath = new Path(stagingPath, "questions_answers_join");
         Path aggregationPath = new Path(stagingPath, "average_answer_time");
         Path usersAggregatesJoinPath = new Path(stagingPath, "users_aggregates_join");
+        Path sketchPath = new Path(stagingPath, "sketches");
+        Path settingsTopNPath = new Path(stagingPath, "top_n_per_setting");
 
         System.out.println("temporary paths:");
         System.out.println("staging path: " + stagingPath);
@@ -909,28 +2655,60 @@ public class FastestAnswerers extends Configured implements Tool {
         System.out.println("questions and answers join path: " + questionsAnswersJoinPath);
         System.out.println("aggregation path: " + aggregationPath);
         System.out.println("users and aggregations join path: " + usersAggregatesJoinPath);
+        for (Grouping grouping : Grouping.values()) {
+            if (grouping != Grouping.User && grouping.isEnabled(conf)) {
+                System.out.println("top N per " + grouping.getOutputName() + " output path: " + getGroupingOutputPath(outputPath, grouping));
+            }
+        }
+        for (int i = 1; i < settings.size(); ++i) {
+            System.out.println("cheat filter setting " + i + " output path: " + getSettingPath(outputPath, i));
+        }
+
+        for (PostsQuery query : extraPostsQueries) {
+            System.out.println("posts query " + query.getName() + " output path: " + new Path(outputPath + "_" + query.getName()));
+        }
 
-        Configuration conf = new Configuration();
+        // отчет описывает стадии текущего запуска, отчеты прошлых запусков удаляются
+        Path reportPath = new Path(conf.get(REPORT_PATH, outputPath + "_report"));
+        System.out.println("report path: " + reportPath);
+        deleteFolderIfExists(conf, reportPath);
+        conf.set(REPORT_PATH, reportPath.toString());
 
         if (runFilters){
-            if (!filterQuestions(conf, postsPath, questionsPath)){
-                System.out.println("Question filtering failed");
+            if (!filterPosts(conf, postsPath, postsFilterPath, postsQueries)){
+                System.out.println("Posts filtering failed");
                 return 1;
             }
 
-            if (!filterAnswers(conf, postsPath, answersPath)){
-                System.out.println("Answers filtering failed");
-                return 1;
+            createFolderIfNotExists(conf, questionsPath);
+            createFolderIfNotExists(conf, answersPath);
+
+            // результаты дополнительных запросов -- не промежуточные данные, переносим их из staging-папки
+            FileSystem fs = FileSystem.get(conf);
+            for (PostsQuery query : extraPostsQueries) {
+                Path queryOutputPath = new Path(outputPath + "_" + query.getName());
+                deleteFolderIfExists(conf, queryOutputPath);
+                Path queryStagingPath = new Path(postsFilterPath, query.getName());
+                createFolderIfNotExists(conf, queryStagingPath);
+                if (!fs.rename(queryStagingPath, queryOutputPath)) {
+                    System.out.println("Cannot move " + queryStagingPath + " to " + queryOutputPath);
+                    return 1;
+                }
             }
         }
 
         if(runJoin){
+            deleteFolderIfExists(conf, sketchPath);
+            conf.set(SKETCH_PATH, sketchPath.toString());
             if (!joinQuestionsAnswers(conf, questionsPath, answersPath, questionsAnswersJoinPath)){
                 System.out.println("Questions-answers join failed");
                 return 1;
             }
         }
 
+        // оценки числа различных пользователей -- по скетчам последнего выполненного соединения
+        mergeSketches(conf, sketchPath);
+
         if(runAggregation){
             if(!aggregateAverageAnswerTime(conf, questionsAnswersJoinPath, aggregationPath)){
                 System.out.println("Average answer time aggregation failed");
@@ -938,20 +2716,70 @@ public class FastestAnswerers extends Configured implements Tool {
             }
         }
 
+        // все наборы параметров фильтра "накруток" соединяются с Users одной задачей, результат каждого набора -- в своей поддиректории
         if(runUserAggregateJoin){
-            if(!joinAggregatesUsers(conf, usersPath, aggregationPath, usersAggregatesJoinPath)){
+            Path userAggregationPath = new Path(aggregationPath, getAggregationOutputName(Grouping.User, 0));
+            createFolderIfNotExists(conf, userAggregationPath);
+            if(!joinAggregatesUsers(conf, usersPath, userAggregationPath, usersAggregatesJoinPath)){
                 System.out.println("Average answer time aggregation failed");
                 return 1;
             }
+
+            for (int i = 0; i < settings.size(); ++i) {
+                createFolderIfNotExists(conf, new Path(usersAggregatesJoinPath, getSettingOutputName(i)));
+            }
         }
 
         if(runTopN){
-            if(!topNAnswerers(conf, usersAggregatesJoinPath, outputPath, topN)){
-                System.out.println("Top 5 answerers failed");
-                return 1;
+            if (settings.size() == 1) {
+                // для одного набора топ строится упорядоченными мапами, так в редюсер передается не больше topN строк с маппера
+                if(!topNAnswerers(conf, new Path(usersAggregatesJoinPath, getSettingOutputName(0)), outputPath, topN)){
+                    System.out.println("Top 5 answerers failed");
+                    return 1;
+                }
+            } else {
+                // топы всех наборов строятся одной задачей с вторичной сортировкой и переносятся из staging-папки
+                if(!topNAnswerersPerSetting(conf, usersAggregatesJoinPath, settingsTopNPath, settings.size(), topN)){
+                    System.out.println("Top N answerers per cheat filter setting failed");
+                    return 1;
+                }
+
+                FileSystem fs = FileSystem.get(conf);
+                for (int i = 0; i < settings.size(); ++i) {
+                    Path settingTopNPath = new Path(settingsTopNPath, getSettingOutputName(i));
+                    Path settingOutputPath = getSettingPath(outputPath, i);
+                    deleteFolderIfExists(conf, settingOutputPath);
+                    createFolderIfNotExists(conf, settingTopNPath);
+                    if (!fs.rename(settingTopNPath, settingOutputPath)) {
+                        System.out.println("Cannot move " + settingTopNPath + " to " + settingOutputPath);
+                        return 1;
+                    }
+                }
+            }
+        }
+
+        if(runTopN){
+            // топы по разрезам строятся по результатам того же самого прохода аггрегации
+            for (Grouping grouping : Grouping.values()) {
+                if (grouping == Grouping.User || !grouping.isEnabled(conf)) {
+                    continue;
+                }
+
+                Path groupingAggregationPath = new Path(aggregationPath, grouping.getOutputName());
+                createFolderIfNotExists(conf, groupingAggregationPath);
+                String jobName = "Top N answerers per " + grouping.getOutputName();
+                if(!topNAnswerersPerGroup(conf, groupingAggregationPath, getGroupingOutputPath(outputPath, grouping), grouping.getTopN(conf), jobName)){
+                    System.out.println(jobName + " failed");
+                    return 1;
+                }
             }
         }
 
+        String indexPath = conf.get(INDEX_PATH);
+        if (StringUtils.isNotBlank(indexPath)) {
+            exportRankingIndex(conf, new Path(usersAggregatesJoinPath, getSettingOutputName(0)), new Path(indexPath));
+        }
+
         cleanup(conf, stagingPath, questionsPath, answersPath, questionsAnswersJoinPath, aggregationPath, usersAggregatesJoinPath);
 
         return 0;
@@ -0,0 +1,455 @@
+package ru.mai.dep806.bigdata.mr;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.conf.Configured;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.util.Tool;
+import org.apache.hadoop.util.ToolRunner;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.*;
+
+/**
+ * Проверка того, что FastestAnswerers считает то же самое, что и запрос hive_solution/query.sql.
+ *
+ * Запускает весь конвейер MapReduce на LocalJobRunner на сгенерированном (или заданном) дампе и сравнивает результат
+ * с независимой реализацией запроса в памяти: отбор вопросов и ответов, соединение по AcceptedAnswerId, фильтр "накруток"
+ * с семантикой SQL (NULL в сравнении отбрасывает строку, unix_timestamp -- целые секунды), GROUP BY с HAVING count(*) > 3,
+ * соединение с Users и ORDER BY среднего времени ответа. Общий с конвейером код -- только разбор строк xml (XmlUtils).
+ *
+ * Сравниваются полный рейтинг (через индекс рейтинга, см. RankingIndex) и топ N из результата конвейера.
+ *
+ * Известное расхождение: unix_timestamp в hive округляет вниз до секунд каждую дату, а конвейер отбрасывает миллисекунды
+ * у разности дат (см. FastestAnswerers.getTimeDifferenceInSeconds). Из-за этого отличаются средние и, для ответов около
+ * порогов фильтра "накруток", число ответов. Поэтому запрос считается дважды: с семантикой hive и с отбрасыванием
+ * миллисекунд у разности, как в конвейере. Расхождения с первым вариантом только выводятся в отчет как известные,
+ * а ошибкой считаются расхождения со вторым.
+ *
+ * Отчет с расхождениями и временем обеих реализаций выводится на экран и записывается в <work_dir>/parity_report.txt.
+ * Код возврата 0 -- необъясненных расхождений нет, 1 -- есть.
+ *
+ * Запуск:
+ * hadoop jar fastest_answerers-1.0-SNAPSHOT.jar ru.mai.dep806.bigdata.mr.HiveParityCheck <work_dir> [<posts_path> <users_path>]
+ * Если пути к Posts и Users не заданы, дамп генерируется в <work_dir>/input.
+ *
+ * Дополнительные параметры передаются через -D:
+ * -DparityQuestions=<N>, -DparityUsers=<N>, -DparitySeed=<N> -- размер и зерно генерируемого дампа (по умолчанию 5000, 200, 1)
+ * -DparityTopN=<N> -- размер сравниваемого топа (по умолчанию 100)
+ * Остальные параметры передаются конвейеру как есть, кроме параметров, меняющих смысл результата (порогов, перцентиля,
+ * выборки): сравнение всегда идет с параметрами по умолчанию, которые соответствуют запросу.
+ */
+public class HiveParityCheck extends Configured implements Tool {
+
+    static final String PARITY_QUESTIONS = "parityQuestions";
+    static final String PARITY_USERS = "parityUsers";
+    static final String PARITY_SEED = "paritySeed";
+    static final String PARITY_TOP_N = "parityTopN";
+
+    // сколько расхождений каждого вида выводить подробно
+    private static final int MAX_LISTED_DIFFS = 20;
+
+    // Строка результата запроса: t.answerer_id, u.displayname, t.avg_answer_time, t.total_answers
+    static class ResultRow {
+        final long userId;
+        final String displayName;
+        final double averageAnswerTime;
+        final long totalAnswers;
+
+        ResultRow(long userId, String displayName, double averageAnswerTime, long totalAnswers) {
+            this.userId = userId;
+            this.displayName = displayName;
+            this.averageAnswerTime = averageAnswerTime;
+            this.totalAnswers = totalAnswers;
+        }
+
+        @Override
+        public String toString() {
+            return userId + "\t" + displayName + "\t" + averageAnswerTime + "\t" + totalAnswers;
+        }
+    }
+
+    private final SimpleDateFormat dateFormat;
+
+    public HiveParityCheck() {
+        // unix_timestamp в hive использует часовой пояс сессии; разность двух дат от него не зависит (кроме переходов на летнее время)
+        dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS");
+        dateFormat.setTimeZone(TimeZone.getTimeZone("GMT"));
+    }
+
+    // Метод для генерации дампа в формате StackOverflow. Кроме обычных строк в дампе есть пограничные случаи:
+    // время ответа около 5 минут и 1 часа, ответы на свой вопрос, ответы без OwnerUserId, принятые ответы, которых нет
+    // в дампе, и отвечающие, которых нет в Users.
+    static void generateDump(Configuration conf, Path postsPath, Path usersPath, int questions, int users, long seed) throws IOException {
+        Random random = new Random(seed);
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS");
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        long base = 1325376000000L; // 2012-01-01
+
+        List<String> rows = new ArrayList<>();
+        long postId = 1;
+        for (int q = 0; q < questions; ++q) {
+            long questionId = postId++;
+            long questionTime = base + (long) (random.nextDouble() * 3 * 365 * 86400000L);
+            int asker = 1 + random.nextInt(users);
+
+            List<Long> answerIds = new ArrayList<>();
+            int answersCount = random.nextInt(4);
+            for (int a = 0; a < answersCount; ++a) {
+                long answerId = postId++;
+                answerIds.add(answerId);
+
+                long delayMillis;
+                switch (random.nextInt(6)) {
+                    case 0:
+                        delayMillis = 300000 + random.nextInt(4000) - 2000;
+                        break;
+                    case 1:
+                        delayMillis = 3600000 + random.nextInt(4000) - 2000;
+                        break;
+                    case 2:
+                        delayMillis = random.nextInt(600000);
+                        break;
+                    default:
+                        delayMillis = random.nextInt(100000000);
+                }
+
+                // отвечающие с id больше числа пользователей отсутствуют в Users
+                int owner = random.nextInt(10) == 0 ? asker : 1 + random.nextInt(users + users / 20);
+                String ownerAttribute = random.nextInt(100) == 0 ? "" : " OwnerUserId=\"" + owner + "\"";
+
+                rows.add("  <row Id=\"" + answerId + "\" PostTypeId=\"2\" ParentId=\"" + questionId + "\" CreationDate=\""
+                        + format.format(new Date(questionTime + delayMillis)) + "\" Score=\"1\" Body=\"&lt;p&gt;a\"" + ownerAttribute + " />");
+            }
+
+            String acceptedAttribute = "";
+            if (!answerIds.isEmpty() && random.nextInt(5) != 0) {
+                acceptedAttribute = " AcceptedAnswerId=\"" + answerIds.get(random.nextInt(answerIds.size())) + "\"";
+            } else if (random.nextInt(50) == 0) {
+                acceptedAttribute = " AcceptedAnswerId=\"" + (Integer.MAX_VALUE - q) + "\"";
+            }
+
+            rows.add("  <row Id=\"" + questionId + "\" PostTypeId=\"1\"" + acceptedAttribute + " CreationDate=\""
+                    + format.format(new Date(questionTime)) + "\" Score=\"1\" Body=\"&lt;p&gt;q\" OwnerUserId=\"" + asker
+                    + "\" Title=\"t\" Tags=\"&lt;java&gt;\" AnswerCount=\"" + answersCount + "\" />");
+        }
+        Collections.shuffle(rows, random);
+
+        FileSystem fs = postsPath.getFileSystem(conf);
+        try (Writer writer = new OutputStreamWriter(fs.create(new Path(postsPath, "Posts.xml"), true), StandardCharsets.UTF_8)) {
+            writer.write("<?xml version=\"1.0\" encoding=\"utf-8\"?>\n<posts>\n");
+            for (String row : rows) {
+                writer.write(row);
+                writer.write('\n');
+            }
+            writer.write("</posts>\n");
+        }
+
+        try (Writer writer = new OutputStreamWriter(fs.create(new Path(usersPath, "Users.xml"), true), StandardCharsets.UTF_8)) {
+            writer.write("<?xml version=\"1.0\" encoding=\"utf-8\"?>\n<users>\n");
+            for (int u = 1; u <= users; ++u) {
+                writer.write("  <row Id=\"" + u + "\" Reputation=\"1\" CreationDate=\"2010-01-01T00:00:00.000\" DisplayName=\"User " + u + "\" />\n");
+            }
+            writer.write("</users>\n");
+        }
+    }
+
+    // функция для чтения всех строк <row .../> из файлов в папке (или из файла)
+    private static List<Map<String, String>> readRows(Configuration conf, Path path) throws IOException {
+        FileSystem fs = path.getFileSystem(conf);
+        List<Map<String, String>> rows = new ArrayList<>();
+        for (FileStatus status : fs.listStatus(path, p -> !p.getName().startsWith("_") && !p.getName().startsWith("."))) {
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(fs.open(status.getPath()), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.trim().startsWith("<row ")) {
+                        rows.add(XmlUtils.parseXmlRow(line));
+                    }
+                }
+            }
+        }
+        return rows;
+    }
+
+    // момент времени в миллисекундах, NULL -- если дата не задана или не разбирается
+    private Long parseMillis(String value) {
+        if (value == null) {
+            return null;
+        }
+        try {
+            return dateFormat.parse(value).getTime();
+        } catch (ParseException ex) {
+            return null;
+        }
+    }
+
+    // Разность дат в секундах: unix_timestamp(answer) - unix_timestamp(question), где unix_timestamp -- целое число секунд
+    // (округление вниз), или, если truncateDifference, разность в миллисекундах с отброшенной дробной частью секунд, как в конвейере
+    private static long timeDifferenceInSeconds(long questionMillis, long answerMillis, boolean truncateDifference) {
+        if (truncateDifference) {
+            return (answerMillis - questionMillis) / 1000;
+        }
+        return Math.floorDiv(answerMillis, 1000L) - Math.floorDiv(questionMillis, 1000L);
+    }
+
+    // Реализация запроса hive_solution/query.sql в памяти. При truncateDifference время ответа считается как в конвейере
+    // (см. описание известного расхождения в начале класса)
+    List<ResultRow> runQuery(List<Map<String, String>> posts, List<Map<String, String>> users, boolean truncateDifference) {
+        // questions, answers
+        List<Map<String, String>> questions = new ArrayList<>();
+        Map<String, List<Map<String, String>>> answersById = new HashMap<>();
+        for (Map<String, String> post : posts) {
+            if ("1".equals(post.get("PostTypeId"))) {
+                questions.add(post);
+            } else if ("2".equals(post.get("PostTypeId"))) {
+                answersById.computeIfAbsent(post.get("Id"), x -> new ArrayList<>()).add(post);
+            }
+        }
+
+        // cheat_filtered и temp: сумма и число времен ответа по answerer_id
+        Map<String, long[]> answererStats = new HashMap<>();
+        for (Map<String, String> question : questions) {
+            String acceptedAnswerId = question.get("AcceptedAnswerId");
+            if (acceptedAnswerId == null) {
+                continue;
+            }
+            for (Map<String, String> answer : answersById.getOrDefault(acceptedAnswerId, Collections.emptyList())) {
+                String questionOwner = question.get("OwnerUserId");
+                String answerOwner = answer.get("OwnerUserId");
+                Long questionTime = parseMillis(question.get("CreationDate"));
+                Long answerTime = parseMillis(answer.get("CreationDate"));
+
+                // сравнение с NULL дает NULL, и строка в WHERE отбрасывается
+                if (questionOwner == null || answerOwner == null || questionTime == null || answerTime == null) {
+                    continue;
+                }
+
+                long seconds = timeDifferenceInSeconds(questionTime, answerTime, truncateDifference);
+                boolean passes = (!questionOwner.equals(answerOwner) && seconds > 60 * 5)
+                        || (questionOwner.equals(answerOwner) && seconds > 60 * 60);
+                if (passes) {
+                    long[] stats = answererStats.computeIfAbsent(answerOwner, x -> new long[2]);
+                    stats[0] += seconds;
+                    stats[1] += 1;
+                }
+            }
+        }
+
+        // JOIN default.users: строк пользователя с одним id может быть несколько
+        Map<String, List<String>> displayNames = new HashMap<>();
+        for (Map<String, String> user : users) {
+            if (user.get("Id") != null) {
+                displayNames.computeIfAbsent(user.get("Id"), x -> new ArrayList<>()).add(user.get("DisplayName"));
+            }
+        }
+
+        List<ResultRow> result = new ArrayList<>();
+        for (Map.Entry<String, long[]> entry : answererStats.entrySet()) {
+            long[] stats = entry.getValue();
+            // HAVING count(*) > 3
+            if (stats[1] <= 3) {
+                continue;
+            }
+            for (String displayName : displayNames.getOrDefault(entry.getKey(), Collections.emptyList())) {
+                result.add(new ResultRow(Long.parseLong(entry.getKey()), displayName, (double) stats[0] / stats[1], stats[1]));
+            }
+        }
+
+        // ORDER BY t.avg_answer_time; порядок при равенстве в SQL не определен, здесь -- по id, как в конвейере
+        result.sort(Comparator.comparingDouble((ResultRow row) -> row.averageAnswerTime).thenComparingLong(row -> row.userId));
+        return result;
+    }
+
+    // функция для чтения топа из результата конвейера
+    private static List<ResultRow> readTopN(Configuration conf, Path outputPath) throws IOException {
+        FileSystem fs = outputPath.getFileSystem(conf);
+        List<ResultRow> rows = new ArrayList<>();
+        Text value = new Text();
+        for (FileStatus status : fs.listStatus(outputPath, p -> !p.getName().startsWith("_") && !p.getName().startsWith("."))) {
+            try (SequenceFile.Reader reader = new SequenceFile.Reader(conf, SequenceFile.Reader.file(status.getPath()))) {
+                while (reader.next(NullWritable.get(), value)) {
+                    Map<String, String> row = SequenceFileUtils.parseFields(value.toString(), FastestAnswerers.aggregateUserJoinResultFieldNames);
+                    rows.add(new ResultRow(
+                            Long.parseLong(row.get("AnswerOwnerUserId")),
+                            row.get("DisplayName"),
+                            Double.parseDouble(row.get("AverageTimeToAnswerInSeconds")),
+                            Long.parseLong(row.get("TotalAnswersCount"))));
+                }
+            }
+        }
+        return rows;
+    }
+
+    private static boolean sameAverage(double a, double b) {
+        return Math.abs(a - b) <= 1e-9 * Math.max(1, Math.max(Math.abs(a), Math.abs(b)));
+    }
+
+    // Метод для сравнения результатов; возвращает число расхождений, подробности дописываются в отчет
+    static int compare(List<ResultRow> expected, List<ResultRow> actual, List<ResultRow> actualTopN, int topN, StringBuilder report) {
+        Map<Long, ResultRow> expectedById = new LinkedHashMap<>();
+        expected.forEach(row -> expectedById.put(row.userId, row));
+        Map<Long, ResultRow> actualById = new LinkedHashMap<>();
+        actual.forEach(row -> actualById.put(row.userId, row));
+
+        List<String> missing = new ArrayList<>();
+        List<String> extra = new ArrayList<>();
+        List<String> valueDiffs = new ArrayList<>();
+        for (ResultRow row : expected) {
+            ResultRow other = actualById.get(row.userId);
+            if (other == null) {
+                missing.add(row.toString());
+            } else if (row.totalAnswers != other.totalAnswers || !sameAverage(row.averageAnswerTime, other.averageAnswerTime)
+                    || !Objects.equals(row.displayName, other.displayName)) {
+                valueDiffs.add("sql: " + row + " | mr: " + other);
+            }
+        }
+        for (ResultRow row : actual) {
+            if (!expectedById.containsKey(row.userId)) {
+                extra.add(row.toString());
+            }
+        }
+
+        // позиции в рейтинге: расхождение, только если на этой позиции разные значения, а не просто разные пользователи с равным средним
+        List<String> rankDiffs = new ArrayList<>();
+        for (int i = 0; i < Math.min(expected.size(), actual.size()); ++i) {
+            ResultRow row = expected.get(i);
+            ResultRow other = actual.get(i);
+            if (row.userId != other.userId && !sameAverage(row.averageAnswerTime, other.averageAnswerTime)) {
+                rankDiffs.add("rank " + (i + 1) + ": sql " + row + " | mr " + other);
+            }
+        }
+
+        List<String> topNDiffs = new ArrayList<>();
+        List<ResultRow> expectedTopN = expected.subList(0, Math.min(topN, expected.size()));
+        for (int i = 0; i < Math.max(expectedTopN.size(), actualTopN.size()); ++i) {
+            ResultRow row = i < expectedTopN.size() ? expectedTopN.get(i) : null;
+            ResultRow other = i < actualTopN.size() ? actualTopN.get(i) : null;
+            if (row == null || other == null || (row.userId != other.userId && !sameAverage(row.averageAnswerTime, other.averageAnswerTime))) {
+                topNDiffs.add("top " + (i + 1) + ": sql " + row + " | mr " + other);
+            }
+        }
+
+        appendDiffs(report, "users only in sql result", missing);
+        appendDiffs(report, "users only in mr result", extra);
+        appendDiffs(report, "users with different values", valueDiffs);
+        appendDiffs(report, "ranking positions with different values", rankDiffs);
+        appendDiffs(report, "top " + topN + " positions with different values", topNDiffs);
+
+        return missing.size() + extra.size() + valueDiffs.size() + rankDiffs.size() + topNDiffs.size();
+    }
+
+    private static void appendDiffs(StringBuilder report, String title, List<String> diffs) {
+        report.append(title).append(": ").append(diffs.size()).append('\n');
+        for (int i = 0; i < Math.min(diffs.size(), MAX_LISTED_DIFFS); ++i) {
+            report.append("  ").append(diffs.get(i)).append('\n');
+        }
+        if (diffs.size() > MAX_LISTED_DIFFS) {
+            report.append("  ...\n");
+        }
+    }
+
+    @Override
+    public int run(String[] args) throws Exception {
+        Path workPath = new Path(args[0]);
+
+        Configuration conf = new Configuration(getConf());
+        conf.set("mapreduce.framework.name", "local");
+        // параметры, меняющие смысл результата: сравнение всегда с запросом, т.е. с параметрами по умолчанию
+        for (String name : new String[] {
+                FastestAnswerers.RANKING_PERCENTILE, FastestAnswerers.SAMPLE_RATE, "answersThreshold",
+                FastestAnswerers.CheatFilterSetting.CHEAT_FILTER_SETTINGS,
+                FastestAnswerers.CheatFilterSetting.SELF_ANSWER_MIN_SECONDS,
+                FastestAnswerers.CheatFilterSetting.OTHER_ANSWER_MIN_SECONDS}) {
+            conf.unset(name);
+        }
+
+        int topN = conf.getInt(PARITY_TOP_N, 100);
+
+        Path postsPath;
+        Path usersPath;
+        if (args.length >= 3) {
+            postsPath = new Path(args[1]);
+            usersPath = new Path(args[2]);
+        } else {
+            postsPath = new Path(workPath, "input/posts");
+            usersPath = new Path(workPath, "input/users");
+            int questions = conf.getInt(PARITY_QUESTIONS, 5000);
+            int users = conf.getInt(PARITY_USERS, 200);
+            long seed = conf.getLong(PARITY_SEED, 1);
+            System.out.println("generating dump: " + questions + " questions, " + users + " users, seed " + seed);
+            generateDump(conf, postsPath, usersPath, questions, users, seed);
+        }
+
+        Path outputPath = new Path(workPath, "output");
+        File indexFile = File.createTempFile("parity_ranking", ".idx");
+        indexFile.deleteOnExit();
+        conf.set(FastestAnswerers.INDEX_PATH, indexFile.toURI().toString());
+
+        // конвейер MapReduce
+        long mrStart = System.currentTimeMillis();
+        int mrResult = ToolRunner.run(conf, new FastestAnswerers(), new String[] {
+                postsPath.toString(), usersPath.toString(), outputPath.toString(),
+                "true", "true", "true", "true", "true", Integer.toString(topN)});
+        long mrMillis = System.currentTimeMillis() - mrStart;
+        if (mrResult != 0) {
+            System.out.println("MapReduce pipeline failed");
+            return 1;
+        }
+
+        List<ResultRow> actual = new ArrayList<>();
+        try (RankingIndex index = RankingIndex.open(indexFile)) {
+            for (RankingIndex.Entry entry : index.getByRank(1, index.size())) {
+                actual.add(new ResultRow(entry.getUserId(), entry.getDisplayName(), entry.getAverageAnswerTime(), entry.getTotalAnswersCount()));
+            }
+        }
+        List<ResultRow> actualTopN = readTopN(conf, outputPath);
+
+        // запрос в памяти, время -- вместе с чтением дампа
+        long sqlStart = System.currentTimeMillis();
+        List<Map<String, String>> posts = readRows(conf, postsPath);
+        List<Map<String, String>> users = readRows(conf, usersPath);
+        List<ResultRow> expected = runQuery(posts, users, false);
+        long sqlMillis = System.currentTimeMillis() - sqlStart;
+        List<ResultRow> expectedTruncated = runQuery(posts, users, true);
+
+        StringBuilder report = new StringBuilder();
+        report.append("posts: ").append(posts.size()).append(", users: ").append(users.size()).append('\n');
+        report.append("mr pipeline: ").append(mrMillis).append(" ms, ").append(actual.size()).append(" ranked users\n");
+        report.append("in-memory sql: ").append(sqlMillis).append(" ms, ").append(expected.size()).append(" ranked users\n");
+
+        report.append("\n== sql with hive unix_timestamp semantics vs mr (known divergence, not an error) ==\n");
+        int knownDiffs = compare(expected, actual, actualTopN, topN, report);
+
+        report.append("\n== sql with mr time difference truncation vs mr (unexplained differences) ==\n");
+        int diffs = compare(expectedTruncated, actual, actualTopN, topN, report);
+
+        report.append('\n');
+        if (diffs != 0) {
+            report.append("RESULT: ").append(diffs).append(" unexplained differences\n");
+        } else if (knownDiffs != 0) {
+            report.append("RESULT: results match, ").append(knownDiffs).append(" differences from hive are explained by unix_timestamp truncation\n");
+        } else {
+            report.append("RESULT: results match\n");
+        }
+
+        System.out.print(report);
+        try (FSDataOutputStream out = workPath.getFileSystem(conf).create(new Path(workPath, "parity_report.txt"), true)) {
+            out.write(report.toString().getBytes(StandardCharsets.UTF_8));
+        }
+
+        return diffs == 0 ? 0 : 1;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int result = ToolRunner.run(new Configuration(), new HiveParityCheck(), args);
+        System.exit(result);
+    }
+}
@@ -0,0 +1,294 @@
+package ru.mai.dep806.bigdata.mr;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.conf.Configured;
+import org.apache.hadoop.util.Tool;
+import org.apache.hadoop.util.ToolRunner;
+
+import java.io.*;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.util.*;
+
+/**
+ * Потоковый вариант FastestAnswerers: поддерживает топ пользователей, быстрее всех правильно отвечающих на вопросы,
+ * в актуальном состоянии по мере поступления событий, без пересчета всего дампа.
+ *
+ * Событиями являются строки того же формата, что и в Posts.xml (см. XmlUtils):
+ * - создание вопроса (PostTypeId = 1 без AcceptedAnswerId);
+ * - принятие ответа (строка вопроса с заполненным AcceptedAnswerId);
+ * - создание ответа (PostTypeId = 2).
+ *
+ * Соединение вопроса с правильным ответом делается как в JoinReducer, но в памяти: открытые вопросы хранятся по Id,
+ * вопросы с принятым, но еще не пришедшим ответом -- по AcceptedAnswerId, ответы -- по Id. Все три хранилища
+ * ограничены по размеру и вытесняют самые старые записи, поэтому память зависит от числа открытых вопросов, а не
+ * от всей истории. Для каждого пользователя хранится только сумма времен ответа и их число, а топ поддерживается
+ * упорядоченным множеством, которое обновляется при каждом засчитанном ответе.
+ *
+ * Запуск:
+ * hadoop jar fastest_answerers-1.0-SNAPSHOT.jar ru.mai.dep806.bigdata.mr.LiveLeaderboard <source> <top_N>
+ * где <source> -- путь к локальному файлу, в который дописываются события, или tcp://host:port.
+ *
+ * Дополнительные параметры передаются через -D:
+ * -DmaxPendingPosts=<N> -- максимальный размер каждого из хранилищ ожидающих постов (по умолчанию 1000000)
+ * -DrefreshSeconds=<N> -- как часто выводить топ (по умолчанию 5 секунд)
+ * -DselfAnswerMinSeconds, -DotherAnswerMinSeconds, -DanswersThreshold -- те же параметры фильтра "накруток" и порога
+ *     числа ответов, что и у FastestAnswerers (если задан cheatFilterSettings, используется первый набор)
+ */
+public class LiveLeaderboard extends Configured implements Tool {
+
+    static final String MAX_PENDING_POSTS = "maxPendingPosts";
+    static final String REFRESH_SECONDS = "refreshSeconds";
+
+    // Информация о посте, необходимая для соединения вопроса с ответом
+    private static class PendingPost {
+        final String ownerUserId;
+        final Date creationDate;
+
+        PendingPost(String ownerUserId, Date creationDate) {
+            this.ownerUserId = ownerUserId;
+            this.creationDate = creationDate;
+        }
+    }
+
+    // Хранилище ожидающих постов с вытеснением самых давно добавленных записей при превышении размера
+    private static class PendingStore extends LinkedHashMap<String, PendingPost> {
+        private static final long serialVersionUID = 1L;
+
+        private final int maxSize;
+        private long evicted;
+
+        PendingStore(int maxSize) {
+            this.maxSize = maxSize;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, PendingPost> eldest) {
+            if (size() > maxSize) {
+                ++evicted;
+                return true;
+            }
+            return false;
+        }
+
+        long getEvicted() {
+            return evicted;
+        }
+    }
+
+    // Аггрегаты пользователя: сумма времен ответа и число ответов
+    private static class UserStats {
+        final String userId;
+        long answerTimeSum;
+        int answersCount;
+
+        UserStats(String userId) {
+            this.userId = userId;
+        }
+
+        double getAverageAnswerTime() {
+            return (double) answerTimeSum / answersCount;
+        }
+    }
+
+    // Порядок в топе: по среднему времени ответа, при равенстве -- по id пользователя
+    private static final Comparator<UserStats> RANKING_ORDER =
+            Comparator.comparingDouble(UserStats::getAverageAnswerTime).thenComparing(stats -> stats.userId);
+
+    private PendingStore openQuestions;
+    private PendingStore acceptedQuestions;
+    private PendingStore answers;
+
+    private final Map<String, UserStats> userStats = new HashMap<>();
+    private final TreeSet<UserStats> ranking = new TreeSet<>(RANKING_ORDER);
+
+    private FastestAnswerers.CheatFilterSetting setting;
+
+    private long eventsCount;
+    private long acceptedAnswersCount;
+
+    private Date parseDate(String value) throws IOException {
+        try {
+            return FastestAnswerers.parseDate(value);
+        } catch (ParseException ex) {
+            throw new IOException("Date parsing failed!");
+        }
+    }
+
+    // метод для обработки одной строки-события
+    void processEvent(String line) throws IOException {
+        Map<String, String> row = XmlUtils.parseXmlRow(line);
+        String id = row.get("Id");
+        if (StringUtils.isBlank(id)) {
+            return;
+        }
+        ++eventsCount;
+
+        String postTypeId = row.get("PostTypeId");
+        if ("1".equals(postTypeId)) {
+            processQuestion(id, row);
+        } else if ("2".equals(postTypeId)) {
+            processAnswer(id, row);
+        }
+    }
+
+    private void processQuestion(String id, Map<String, String> row) throws IOException {
+        PendingPost question = toPendingPost(row);
+        String acceptedAnswerId = row.get("AcceptedAnswerId");
+
+        if (StringUtils.isBlank(acceptedAnswerId)) {
+            if (question != null) {
+                openQuestions.put(id, question);
+            }
+            return;
+        }
+
+        // строка принятия ответа может не содержать данных о самом вопросе -- тогда берем их из события создания
+        PendingPost openQuestion = openQuestions.remove(id);
+        if (question == null) {
+            question = openQuestion;
+        }
+        if (question == null) {
+            return;
+        }
+
+        PendingPost answer = answers.remove(acceptedAnswerId);
+        if (answer != null) {
+            accept(question, answer);
+        } else {
+            acceptedQuestions.put(acceptedAnswerId, question);
+        }
+    }
+
+    private void processAnswer(String id, Map<String, String> row) throws IOException {
+        PendingPost answer = toPendingPost(row);
+        if (answer == null) {
+            return;
+        }
+
+        PendingPost question = acceptedQuestions.remove(id);
+        if (question != null) {
+            accept(question, answer);
+        } else {
+            answers.put(id, answer);
+        }
+    }
+
+    private PendingPost toPendingPost(Map<String, String> row) throws IOException {
+        String ownerUserId = row.get("OwnerUserId");
+        String creationDate = row.get("CreationDate");
+        if (StringUtils.isBlank(ownerUserId) || StringUtils.isBlank(creationDate)) {
+            return null;
+        }
+        return new PendingPost(ownerUserId, parseDate(creationDate));
+    }
+
+    // Засчитывает правильный ответ, если он проходит фильтр "накруток" (тот же, что и в JoinReducer), и обновляет топ
+    private void accept(PendingPost question, PendingPost answer) {
+        long seconds = FastestAnswerers.getTimeDifferenceInSeconds(question.creationDate, answer.creationDate);
+        boolean selfAnswer = question.ownerUserId.equals(answer.ownerUserId);
+
+        if (!setting.accepts(selfAnswer, seconds)) {
+            return;
+        }
+        ++acceptedAnswersCount;
+
+        UserStats stats = userStats.computeIfAbsent(answer.ownerUserId, UserStats::new);
+
+        // позиция пользователя в топе зависит от его среднего, поэтому перед изменением его нужно удалить из множества
+        ranking.remove(stats);
+        stats.answerTimeSum += seconds;
+        stats.answersCount += 1;
+        if (stats.answersCount > setting.getAnswersThreshold()) {
+            ranking.add(stats);
+        }
+    }
+
+    // метод для вывода текущего топа
+    void printTop(PrintStream out, int topN) {
+        out.println("events: " + eventsCount + ", accepted answers: " + acceptedAnswersCount + ", users: " + userStats.size()
+                + ", open questions: " + openQuestions.size() + ", accepted questions waiting for answer: " + acceptedQuestions.size()
+                + ", pending answers: " + answers.size()
+                + ", evicted: " + (openQuestions.getEvicted() + acceptedQuestions.getEvicted() + answers.getEvicted()));
+
+        int position = 0;
+        for (UserStats stats : ranking) {
+            if (position++ >= topN) {
+                break;
+            }
+            out.println(position + "\t" + stats.userId + "\t" + stats.getAverageAnswerTime() + "\t" + stats.answersCount);
+        }
+        out.println();
+    }
+
+    // функция для открытия источника событий: tcp://host:port или путь к локальному файлу
+    private static Reader openSource(String source) throws IOException {
+        if (source.startsWith("tcp://")) {
+            String[] hostPort = source.substring("tcp://".length()).split(":");
+            Socket socket = new Socket(hostPort[0], Integer.parseInt(hostPort[1]));
+            return new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8);
+        }
+        return new InputStreamReader(new FileInputStream(source), StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public int run(String[] args) throws Exception {
+        String source = args[0];
+        int topN = Integer.parseInt(args[1]);
+
+        Configuration conf = getConf();
+        int maxPendingPosts = conf.getInt(MAX_PENDING_POSTS, 1000000);
+        long refreshMillis = conf.getLong(REFRESH_SECONDS, 5) * 1000;
+
+        openQuestions = new PendingStore(maxPendingPosts);
+        acceptedQuestions = new PendingStore(maxPendingPosts);
+        answers = new PendingStore(maxPendingPosts);
+        setting = FastestAnswerers.CheatFilterSetting.fromConfiguration(conf).get(0);
+
+        System.out.println("source: " + source);
+        System.out.println("top N: " + topN);
+        System.out.println("cheat filter setting: " + setting);
+        System.out.println("max pending posts: " + maxPendingPosts);
+
+        boolean isFile = !source.startsWith("tcp://");
+        StringBuilder partialLine = new StringBuilder();
+        long lastPrint = System.currentTimeMillis();
+
+        try (BufferedReader reader = new BufferedReader(openSource(source))) {
+            while (true) {
+                String line = reader.readLine();
+
+                if (line == null) {
+                    // сокет закрыт -- событий больше не будет; файл же дочитан до текущего конца, ждем дописывания
+                    if (!isFile) {
+                        break;
+                    }
+                    Thread.sleep(200);
+                } else {
+                    // последняя строка файла может быть еще не дописана до конца
+                    partialLine.append(line);
+                    if (partialLine.toString().trim().endsWith(">")) {
+                        processEvent(partialLine.toString());
+                        partialLine.setLength(0);
+                    }
+                }
+
+                long now = System.currentTimeMillis();
+                if (now - lastPrint >= refreshMillis) {
+                    printTop(System.out, topN);
+                    lastPrint = now;
+                }
+            }
+        }
+
+        printTop(System.out, topN);
+        return 0;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int result = ToolRunner.run(new Configuration(), new LiveLeaderboard(), args);
+        System.exit(result);
+    }
+}
@@ -0,0 +1,33 @@
+package ru.mai.dep806.bigdata.mr;
+
+import java.util.Map;
+
+/**
+ * Запрос-фильтр над строками Posts.xml для совместного прохода (см. FastestAnswerers.PostsFilterMapper).
+ *
+ * Все зарегистрированные запросы обрабатываются одним map-проходом: каждая строка Posts.xml разбирается один раз
+ * и проверяется условием каждого запроса, а отобранные строки каждого запроса пишутся в свою поддиректорию
+ * выходной папки с именем getName(). Реализация должна иметь публичный конструктор без аргументов.
+ *
+ * При -DmapThreads > 1 строки разбираются в нескольких потоках, и каждый поток создает свои экземпляры запросов,
+ * поэтому реализация может хранить состояние (например, SimpleDateFormat или кэш), но не должна разделять
+ * изменяемое состояние между экземплярами (через статические поля).
+ */
+public interface PostsQuery {
+
+    // имя запроса, оно же имя поддиректории с результатом (латинские буквы, цифры и _); должно быть уникальным,
+    // не может начинаться с _ и совпадать с суффиксами других результатов (см. FastestAnswerers.checkPostsQueryNames)
+    String getName();
+
+    // условие, которому должна удовлетворять строка, чтобы попасть в результат запроса
+    boolean condition(Map<String, String> row);
+
+    // поля строки, которые записываются в результат (в формате SequenceFileUtils)
+    String[] getFieldNames();
+
+    // Ключ, по которому пост попадает или не попадает в выборку в режиме быстрой оценки (см. FastestAnswerers.isSampled).
+    // Посты, относящиеся к одному вопросу, должны возвращать id этого вопроса
+    default String getSampleKey(Map<String, String> row) {
+        return row.get("Id");
+    }
+}
@@ -0,0 +1,272 @@
+package ru.mai.dep806.bigdata.mr;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Бинарный индекс с итоговым рейтингом всех пользователей, прошедших порог числа ответов, для чтения через отображение
+ * файла в память. Открытие файла не читает его в кучу, поиск пользователя по id -- бинарный поиск за O(log n),
+ * выборка по диапазону мест в рейтинге -- O(1) на запись.
+ *
+ * Формат файла (big-endian):
+ * - заголовок: MAGIC (int), VERSION (int), число записей (int), зарезервировано (int),
+ *   смещение индекса по местам (long), смещение пула имен (long);
+ * - записи, отсортированные по id пользователя, по RECORD_SIZE байт: id (long), среднее время ответа (double),
+ *   значение, по которому строится рейтинг (double; совпадает со средним, если не задан rankingPercentile),
+ *   число ответов (int), место в рейтинге начиная с 1 (int), смещение DisplayName в пуле имен (int), длина DisplayName (int);
+ * - индекс по местам: для каждого места номер записи (int);
+ * - пул имен: DisplayName в UTF-8 подряд.
+ *
+ * Файл целиком отображается одним буфером, поэтому его размер ограничен 2 ГБ.
+ */
+public class RankingIndex implements Closeable {
+
+    static final int MAGIC = 0x46414958;
+    static final int VERSION = 2;
+
+    private static final int HEADER_SIZE = 32;
+    private static final int RECORD_SIZE = 40;
+
+    // Запись рейтинга
+    public static class Entry {
+        private final long userId;
+        private final String displayName;
+        private final double averageAnswerTime;
+        private final double rankingValue;
+        private final int totalAnswersCount;
+        private final int rank;
+
+        public Entry(long userId, String displayName, double averageAnswerTime, double rankingValue, int totalAnswersCount, int rank) {
+            this.userId = userId;
+            this.displayName = displayName;
+            this.averageAnswerTime = averageAnswerTime;
+            this.rankingValue = rankingValue;
+            this.totalAnswersCount = totalAnswersCount;
+            this.rank = rank;
+        }
+
+        // та же запись с другим местом в рейтинге
+        public Entry withRank(int rank) {
+            return new Entry(userId, displayName, averageAnswerTime, rankingValue, totalAnswersCount, rank);
+        }
+
+        public long getUserId() {
+            return userId;
+        }
+
+        public String getDisplayName() {
+            return displayName;
+        }
+
+        public double getAverageAnswerTime() {
+            return averageAnswerTime;
+        }
+
+        // значение, по которому определяется место в рейтинге (среднее время ответа или перцентиль, см. rankingPercentile)
+        public double getRankingValue() {
+            return rankingValue;
+        }
+
+        public int getTotalAnswersCount() {
+            return totalAnswersCount;
+        }
+
+        public int getRank() {
+            return rank;
+        }
+
+        @Override
+        public String toString() {
+            return rank + "\t" + userId + "\t" + displayName + "\t" + averageAnswerTime + "\t" + rankingValue + "\t" + totalAnswersCount;
+        }
+    }
+
+    // Функция для записи индекса. Места в рейтинге должны быть уже проставлены и образовывать последовательность 1..n
+    public static void write(List<Entry> entries, OutputStream stream) throws IOException {
+        List<Entry> byUserId = new ArrayList<>(entries);
+        byUserId.sort(Comparator.comparingLong(Entry::getUserId));
+
+        int count = byUserId.size();
+        int[] recordByRank = new int[count];
+        byte[][] names = new byte[count][];
+
+        int namesSize = 0;
+        for (int i = 0; i < count; ++i) {
+            Entry entry = byUserId.get(i);
+            int rank = entry.getRank();
+            if (rank < 1 || rank > count) {
+                throw new IllegalArgumentException("Rank out of range: " + rank);
+            }
+            recordByRank[rank - 1] = i;
+
+            names[i] = entry.getDisplayName() == null ? new byte[0] : entry.getDisplayName().getBytes(StandardCharsets.UTF_8);
+            namesSize += names[i].length;
+        }
+
+        long rankIndexOffset = HEADER_SIZE + (long) count * RECORD_SIZE;
+        long namesOffset = rankIndexOffset + (long) count * 4;
+        if (namesOffset + namesSize > Integer.MAX_VALUE) {
+            throw new IOException("Ranking index is too large: " + (namesOffset + namesSize) + " bytes");
+        }
+
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream));
+
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(count);
+        out.writeInt(0);
+        out.writeLong(rankIndexOffset);
+        out.writeLong(namesOffset);
+
+        int nameOffset = 0;
+        for (int i = 0; i < count; ++i) {
+            Entry entry = byUserId.get(i);
+            out.writeLong(entry.getUserId());
+            out.writeDouble(entry.getAverageAnswerTime());
+            out.writeDouble(entry.getRankingValue());
+            out.writeInt(entry.getTotalAnswersCount());
+            out.writeInt(entry.getRank());
+            out.writeInt(nameOffset);
+            out.writeInt(names[i].length);
+            nameOffset += names[i].length;
+        }
+
+        for (int record : recordByRank) {
+            out.writeInt(record);
+        }
+
+        for (byte[] name : names) {
+            out.write(name);
+        }
+
+        out.flush();
+    }
+
+    private final FileChannel channel;
+    private final ByteBuffer buffer;
+    private final int count;
+    private final int rankIndexOffset;
+    private final int namesOffset;
+
+    private RankingIndex(FileChannel channel, MappedByteBuffer buffer) throws IOException {
+        this.channel = channel;
+        this.buffer = buffer;
+
+        if (buffer.getInt(0) != MAGIC) {
+            throw new IOException("Not a ranking index file");
+        }
+        if (buffer.getInt(4) != VERSION) {
+            throw new IOException("Unsupported ranking index version: " + buffer.getInt(4));
+        }
+        count = buffer.getInt(8);
+        rankIndexOffset = (int) buffer.getLong(16);
+        namesOffset = (int) buffer.getLong(24);
+    }
+
+    // Функция для открытия индекса только на чтение
+    public static RankingIndex open(File file) throws IOException {
+        FileChannel channel = new RandomAccessFile(file, "r").getChannel();
+        try {
+            return new RankingIndex(channel, channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        } catch (IOException | RuntimeException ex) {
+            channel.close();
+            throw ex;
+        }
+    }
+
+    // число пользователей в рейтинге
+    public int size() {
+        return count;
+    }
+
+    // Поиск записи пользователя по id, null -- если пользователя нет в рейтинге
+    public Entry findByUserId(long userId) {
+        int low = 0;
+        int high = count - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            long middleUserId = buffer.getLong(recordOffset(middle));
+            if (middleUserId < userId) {
+                low = middle + 1;
+            } else if (middleUserId > userId) {
+                high = middle - 1;
+            } else {
+                return readEntry(middle);
+            }
+        }
+        return null;
+    }
+
+    // Записи с местами в рейтинге от fromRank до toRank включительно (места начинаются с 1)
+    public List<Entry> getByRank(int fromRank, int toRank) {
+        List<Entry> result = new ArrayList<>();
+        for (int rank = Math.max(fromRank, 1); rank <= Math.min(toRank, count); ++rank) {
+            result.add(readEntry(buffer.getInt(rankIndexOffset + (rank - 1) * 4)));
+        }
+        return result;
+    }
+
+    // Первые k записей рейтинга
+    public List<Entry> top(int k) {
+        return getByRank(1, k);
+    }
+
+    private static int recordOffset(int record) {
+        return HEADER_SIZE + record * RECORD_SIZE;
+    }
+
+    private Entry readEntry(int record) {
+        int offset = recordOffset(record);
+
+        int nameOffset = buffer.getInt(offset + 32);
+        int nameLength = buffer.getInt(offset + 36);
+        byte[] name = new byte[nameLength];
+        // копия буфера со своей позицией, чтобы чтение не меняло состояние общего буфера
+        ByteBuffer names = buffer.duplicate();
+        names.position(namesOffset + nameOffset);
+        names.get(name);
+
+        return new Entry(
+                buffer.getLong(offset),
+                new String(name, StandardCharsets.UTF_8),
+                buffer.getDouble(offset + 8),
+                buffer.getDouble(offset + 16),
+                buffer.getInt(offset + 24),
+                buffer.getInt(offset + 28));
+    }
+
+    // Закрывает файл; сам буфер освобождается сборщиком мусора, после закрытия индексом пользоваться нельзя
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    // Запуск:
+    // java ru.mai.dep806.bigdata.mr.RankingIndex <index_file> user <user_id>
+    // java ru.mai.dep806.bigdata.mr.RankingIndex <index_file> top <k>
+    // java ru.mai.dep806.bigdata.mr.RankingIndex <index_file> ranks <from> <to>
+    public static void main(String[] args) throws IOException {
+        try (RankingIndex index = open(new File(args[0]))) {
+            switch (args[1]) {
+                case "user":
+                    Entry entry = index.findByUserId(Long.parseLong(args[2]));
+                    System.out.println(entry == null ? "user " + args[2] + " is not ranked" : entry.toString());
+                    break;
+                case "top":
+                    index.top(Integer.parseInt(args[2])).forEach(System.out::println);
+                    break;
+                case "ranks":
+                    index.getByRank(Integer.parseInt(args[2]), Integer.parseInt(args[3])).forEach(System.out::println);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown command: " + args[1]);
+            }
+        }
+    }
+}
@@ -0,0 +1,222 @@
+package ru.mai.dep806.bigdata.mr;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapreduce.Counter;
+import org.apache.hadoop.mapreduce.CounterGroup;
+import org.apache.hadoop.mapreduce.Counters;
+import org.apache.hadoop.mapreduce.TaskInputOutputContext;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.function.Supplier;
+
+/**
+ * Профилирование обработки отдельных записей в мапперах и редюсерах (включается параметром -Dinstrumentation=true).
+ *
+ * Для каждого вызова map/reduce запоминается время обработки и размер записи. Гистограммы строятся по степеням четверки
+ * (микросекунды и байты) и по окончании задачи добавляются в счетчики групп RecordLatencyMicros.<имя> и
+ * RecordSizeBytes.<имя>, имя счетчика -- верхняя граница корзины. Счетчики суммируются по всем задачам стадии,
+ * а перцентили по ним считает драйвер (см. appendPercentiles). Кроме того, задача хранит slowRowsCount самых медленных
+ * записей с их id и записывает их в файл в папке slowRowsPath, который драйвер сливает в отчет стадии.
+ *
+ * При выключенном профилировании все методы ничего не делают, и время не замеряется.
+ */
+public class RecordProfiler {
+
+    public static final String INSTRUMENTATION = "instrumentation";
+    public static final String SLOW_ROWS_COUNT = "slowRowsCount";
+    public static final String SLOW_ROWS_PATH = "slowRowsPath";
+
+    static final String LATENCY_GROUP_PREFIX = "RecordLatencyMicros.";
+    static final String SIZE_GROUP_PREFIX = "RecordSizeBytes.";
+
+    // Число корзин ограничено лимитом числа счетчиков задачи (mapreduce.job.counters.max, по умолчанию 120): у одного
+    // профилируемого класса не больше 16 + 17 = 33 счетчиков, и в стадии соединения вопросов с ответами, где профилируются
+    // три класса, вместе с JoinCounters получается не больше 3 * 33 + 4 = 103 счетчиков. Последняя корзина времени --
+    // от 4^14 мкс (около 4.5 минут), последняя корзина размера -- от 4^15 байт (1 ГБ)
+    private static final int MAX_LATENCY_BUCKET = 15;
+    private static final int MAX_SIZE_BUCKET = 16;
+
+    // Медленная запись
+    private static class SlowRow {
+        final long micros;
+        final long bytes;
+        final String rowId;
+
+        SlowRow(long micros, long bytes, String rowId) {
+            this.micros = micros;
+            this.bytes = bytes;
+            this.rowId = rowId;
+        }
+    }
+
+    private final String name;
+    private final boolean enabled;
+    private final int slowRowsCount;
+
+    private final long[] latencyBuckets = new long[MAX_LATENCY_BUCKET + 1];
+    private final long[] sizeBuckets = new long[MAX_SIZE_BUCKET + 1];
+    // куча с самой быстрой из запомненных записей на вершине
+    private final PriorityQueue<SlowRow> slowRows = new PriorityQueue<>(Comparator.comparingLong((SlowRow row) -> row.micros));
+
+    public RecordProfiler(Configuration conf, String name) {
+        this.name = name;
+        this.enabled = conf.getBoolean(INSTRUMENTATION, false);
+        this.slowRowsCount = conf.getInt(SLOW_ROWS_COUNT, 20);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    // метка времени начала обработки записи
+    public long start() {
+        return enabled ? System.nanoTime() : 0;
+    }
+
+    // Учитывает запись, обработка которой началась в момент startNanos (см. start)
+    public void record(long startNanos, long bytes, Supplier<String> rowId) {
+        if (enabled) {
+            recordDuration(System.nanoTime() - startNanos, bytes, rowId);
+        }
+    }
+
+    // Учитывает запись, обработка которой заняла durationNanos (например, замеренная в другом потоке).
+    // id записи вычисляется, только если она попадает в число самых медленных.
+    public void recordDuration(long durationNanos, long bytes, Supplier<String> rowId) {
+        if (!enabled) {
+            return;
+        }
+
+        long micros = durationNanos / 1000;
+        ++latencyBuckets[bucket(micros, MAX_LATENCY_BUCKET)];
+        ++sizeBuckets[bucket(bytes, MAX_SIZE_BUCKET)];
+
+        if (slowRows.size() < slowRowsCount) {
+            slowRows.add(new SlowRow(micros, bytes, rowId.get()));
+        } else if (slowRowsCount > 0 && slowRows.peek().micros < micros) {
+            slowRows.poll();
+            slowRows.add(new SlowRow(micros, bytes, rowId.get()));
+        }
+    }
+
+    // номер корзины: 0 для нуля, k -- для значений из [4^(k-1), 4^k - 1]
+    private static int bucket(long value, int maxBucket) {
+        return Math.min((64 - Long.numberOfLeadingZeros(Math.max(value, 0)) + 1) / 2, maxBucket);
+    }
+
+    // верхняя граница корзины; последняя корзина не ограничена сверху
+    private static long bucketUpperBound(int bucket, int maxBucket) {
+        return bucket == maxBucket ? Long.MAX_VALUE : (1L << (2 * bucket)) - 1;
+    }
+
+    // Записывает гистограммы в счетчики и самые медленные записи в файл; вызывается в cleanup задачи
+    public void close(TaskInputOutputContext<?, ?, ?, ?> context) throws IOException {
+        if (!enabled) {
+            return;
+        }
+
+        for (int i = 0; i <= MAX_LATENCY_BUCKET; ++i) {
+            if (latencyBuckets[i] != 0) {
+                context.getCounter(LATENCY_GROUP_PREFIX + name, Long.toString(bucketUpperBound(i, MAX_LATENCY_BUCKET))).increment(latencyBuckets[i]);
+            }
+        }
+        for (int i = 0; i <= MAX_SIZE_BUCKET; ++i) {
+            if (sizeBuckets[i] != 0) {
+                context.getCounter(SIZE_GROUP_PREFIX + name, Long.toString(bucketUpperBound(i, MAX_SIZE_BUCKET))).increment(sizeBuckets[i]);
+            }
+        }
+
+        String slowRowsPath = context.getConfiguration().get(SLOW_ROWS_PATH);
+        if (StringUtils.isBlank(slowRowsPath) || slowRows.isEmpty()) {
+            return;
+        }
+
+        StringBuilder text = new StringBuilder();
+        String attempt = context.getTaskAttemptID().toString();
+        for (SlowRow row : slowRows) {
+            text.append(row.micros).append('\t').append(row.bytes).append('\t').append(name).append('\t')
+                    .append(attempt).append('\t').append(row.rowId).append('\n');
+        }
+
+        // файл пишется под скрытым именем и переименовывается, чтобы драйвер не прочитал недописанный файл
+        Path tempPath = new Path(slowRowsPath, "." + name + "_" + attempt);
+        Path path = new Path(slowRowsPath, name + "_" + attempt);
+        FileSystem fs = path.getFileSystem(context.getConfiguration());
+        try (FSDataOutputStream out = fs.create(tempPath, true)) {
+            out.write(text.toString().getBytes(StandardCharsets.UTF_8));
+        }
+        fs.delete(path, false);
+        if (!fs.rename(tempPath, path)) {
+            throw new IOException("Cannot rename " + tempPath + " to " + path);
+        }
+    }
+
+    // Добавляет в отчет стадии число записей и 50-й, 90-й, 99-й перцентили и максимум по каждой гистограмме из счетчиков.
+    // Значение перцентиля -- верхняя граница корзины, в которую он попадает, т.е. оценка сверху с точностью до 4 раз.
+    static void appendPercentiles(Counters counters, Map<String, String> report) {
+        for (CounterGroup group : counters) {
+            String groupName = group.getName();
+            if (!groupName.startsWith(LATENCY_GROUP_PREFIX) && !groupName.startsWith(SIZE_GROUP_PREFIX)) {
+                continue;
+            }
+
+            TreeMap<Long, Long> histogram = new TreeMap<>();
+            long total = 0;
+            for (Counter counter : group) {
+                histogram.merge(Long.parseLong(counter.getName()), counter.getValue(), Long::sum);
+                total += counter.getValue();
+            }
+
+            report.put(groupName + ".count", Long.toString(total));
+            report.put(groupName + ".p50", formatBound(percentile(histogram, total, 0.5)));
+            report.put(groupName + ".p90", formatBound(percentile(histogram, total, 0.9)));
+            report.put(groupName + ".p99", formatBound(percentile(histogram, total, 0.99)));
+            report.put(groupName + ".max", formatBound(histogram.isEmpty() ? 0 : histogram.lastKey()));
+        }
+    }
+
+    private static long percentile(TreeMap<Long, Long> histogram, long total, double q) {
+        long cumulative = 0;
+        for (Map.Entry<Long, Long> entry : histogram.entrySet()) {
+            cumulative += entry.getValue();
+            if (cumulative >= q * total) {
+                return entry.getKey();
+            }
+        }
+        return 0;
+    }
+
+    private static String formatBound(long bound) {
+        return bound == Long.MAX_VALUE ? "inf" : "<=" + bound;
+    }
+
+    // Сливает файлы самых медленных записей всех задач стадии и возвращает count самых медленных в порядке убывания времени
+    static List<String> mergeSlowRows(Configuration conf, Path slowRowsPath, int count) throws IOException {
+        FileSystem fs = slowRowsPath.getFileSystem(conf);
+        List<String> lines = new ArrayList<>();
+        if (!fs.exists(slowRowsPath)) {
+            return lines;
+        }
+
+        for (FileStatus status : fs.listStatus(slowRowsPath, path -> !path.getName().startsWith("_") && !path.getName().startsWith("."))) {
+            try (Scanner scanner = new Scanner(fs.open(status.getPath()), StandardCharsets.UTF_8.name())) {
+                while (scanner.hasNextLine()) {
+                    String line = scanner.nextLine();
+                    if (!line.isEmpty()) {
+                        lines.add(line);
+                    }
+                }
+            }
+        }
+
+        lines.sort(Comparator.comparingLong((String line) -> Long.parseLong(line.substring(0, line.indexOf('\t')))).reversed());
+        return new ArrayList<>(lines.subList(0, Math.min(count, lines.size())));
+    }
+}
@@ -0,0 +1,200 @@
+package ru.mai.dep806.bigdata.mr;
+
+import org.apache.hadoop.io.WritableUtils;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Буфер строк одной стороны reduce-side join'а с ограничением по памяти.
+ *
+ * Пока оценка занимаемой памяти не превышает бюджет, строки хранятся в списке. При превышении все накопленные строки
+ * и все последующие дописываются во временный файл на локальном диске задачи (java.io.tmpdir, в контейнере YARN --
+ * его рабочая папка), а при обходе читаются из него потоком. Так один "перекошенный" ключ (повторяющиеся строки Users,
+ * много вопросов с одним и тем же битым AcceptedAnswerId) не может исчерпать кучу редюсера.
+ *
+ * Буфер переиспользуется для всех ключей задачи: clear() перед каждым ключом, close() в cleanup редюсера.
+ */
+public class SpillableJoinBuffer implements Iterable<String>, Closeable {
+
+    // приблизительные накладные расходы на строку в списке: заголовки String и char[], ссылка в массиве списка
+    private static final long STRING_OVERHEAD_BYTES = 64;
+
+    // Обработчик пары строк из декартова произведения двух сторон join'а
+    public interface PairConsumer {
+        void accept(String left, String right) throws IOException, InterruptedException;
+    }
+
+    private final long memoryBudgetBytes;
+
+    private final List<String> records = new ArrayList<>();
+    private long memoryBytes;
+    private long size;
+
+    private File spillFile;
+    private DataOutputStream spillOut;
+    private long spilledRecords;
+
+    public SpillableJoinBuffer(long memoryBudgetBytes) {
+        this.memoryBudgetBytes = memoryBudgetBytes;
+    }
+
+    public void add(String record) throws IOException {
+        ++size;
+
+        if (spillOut != null) {
+            writeSpilled(record);
+            return;
+        }
+
+        records.add(record);
+        memoryBytes += STRING_OVERHEAD_BYTES + 2L * record.length();
+
+        if (memoryBytes > memoryBudgetBytes) {
+            spill();
+        }
+    }
+
+    // переносит все строки из памяти в файл, дальше строки пишутся сразу в файл
+    private void spill() throws IOException {
+        if (spillFile == null) {
+            spillFile = File.createTempFile("join_buffer", ".spill");
+            spillFile.deleteOnExit();
+        }
+        spillOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(spillFile)));
+
+        for (String record : records) {
+            writeSpilled(record);
+        }
+        records.clear();
+        memoryBytes = 0;
+    }
+
+    private void writeSpilled(String record) throws IOException {
+        WritableUtils.writeString(spillOut, record);
+        ++spilledRecords;
+    }
+
+    public long size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public boolean isSpilled() {
+        return spillOut != null;
+    }
+
+    // число строк, записанных на диск для текущего ключа
+    public long getSpilledRecords() {
+        return spilledRecords;
+    }
+
+    // размер файла со строками текущего ключа
+    public long getSpilledBytes() throws IOException {
+        if (spillOut == null) {
+            return 0;
+        }
+        spillOut.flush();
+        return spillFile.length();
+    }
+
+    // Готовит буфер к следующему ключу; временный файл не удаляется, а перезаписывается при следующем сбросе на диск
+    public void clear() throws IOException {
+        records.clear();
+        memoryBytes = 0;
+        size = 0;
+        spilledRecords = 0;
+        if (spillOut != null) {
+            spillOut.close();
+            spillOut = null;
+        }
+    }
+
+    @Override
+    public Iterator<String> iterator() {
+        if (spillOut == null) {
+            return records.iterator();
+        }
+
+        try {
+            spillOut.flush();
+            return new SpillIterator(new DataInputStream(new BufferedInputStream(new FileInputStream(spillFile))), spilledRecords);
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        clear();
+        if (spillFile != null) {
+            spillFile.delete();
+            spillFile = null;
+        }
+    }
+
+    // Итератор по строкам, сброшенным на диск. Файл закрывается после чтения последней строки
+    private static class SpillIterator implements Iterator<String> {
+        private final DataInputStream in;
+        private long remaining;
+
+        SpillIterator(DataInputStream in, long count) throws IOException {
+            this.in = in;
+            this.remaining = count;
+            if (remaining == 0) {
+                in.close();
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return remaining > 0;
+        }
+
+        @Override
+        public String next() {
+            if (remaining == 0) {
+                throw new NoSuchElementException();
+            }
+            try {
+                String record = WritableUtils.readString(in);
+                if (--remaining == 0) {
+                    in.close();
+                }
+                return record;
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+        }
+    }
+
+    // Перебирает декартово произведение двух буферов. Если на диск сброшена только одна сторона, во внешнем цикле
+    // обходится она, чтобы файл читался один раз, а во внутреннем -- сторона из памяти. Если сброшены обе,
+    // внутренняя сторона перечитывается с диска для каждой строки внешней.
+    public static void crossProduct(SpillableJoinBuffer left, SpillableJoinBuffer right, PairConsumer consumer)
+            throws IOException, InterruptedException {
+        try {
+            if (right.isSpilled() && !left.isSpilled()) {
+                for (String rightRecord : right) {
+                    for (String leftRecord : left) {
+                        consumer.accept(leftRecord, rightRecord);
+                    }
+                }
+            } else {
+                for (String leftRecord : left) {
+                    for (String rightRecord : right) {
+                        consumer.accept(leftRecord, rightRecord);
+                    }
+                }
+            }
+        } catch (UncheckedIOException ex) {
+            throw ex.getCause();
+        }
+    }
+}
@@ -0,0 +1,216 @@
+package ru.mai.dep806.bigdata.mr;
+
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableUtils;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Компактная сливаемая реализация t-digest для оценки перцентилей.
+ *
+ * Хранит отсортированный набор центроидов (среднее, вес). Размер дайджеста ограничен параметром compression
+ * и не зависит от числа добавленных значений, поэтому его можно передавать между маппером, комбайнером и редюсером
+ * и сливать в любом порядке.
+ */
+public class TDigest implements Writable {
+
+    public static final int DEFAULT_COMPRESSION = 100;
+
+    private final int compression;
+
+    private double[] means;
+    private long[] counts;
+    private int size;
+    // число центроидов в начале массивов, которые уже отсортированы и сжаты
+    private int compressedSize;
+
+    private long totalCount;
+    private double min = Double.POSITIVE_INFINITY;
+    private double max = Double.NEGATIVE_INFINITY;
+
+    public TDigest() {
+        this(DEFAULT_COMPRESSION);
+    }
+
+    public TDigest(int compression) {
+        this.compression = compression;
+        this.means = new double[4];
+        this.counts = new long[4];
+    }
+
+    public void clear() {
+        size = 0;
+        compressedSize = 0;
+        totalCount = 0;
+        min = Double.POSITIVE_INFINITY;
+        max = Double.NEGATIVE_INFINITY;
+    }
+
+    public void add(double value) {
+        add(value, 1);
+    }
+
+    public void add(double value, long count) {
+        if (size == means.length) {
+            // буфер заполнен: сначала пробуем сжать, и только если это не помогло -- расширяем
+            if (size > 2 * compression) {
+                compress();
+            }
+            if (size == means.length) {
+                means = Arrays.copyOf(means, size * 2);
+                counts = Arrays.copyOf(counts, size * 2);
+            }
+        }
+        means[size] = value;
+        counts[size] = count;
+        ++size;
+
+        totalCount += count;
+        min = Math.min(min, value);
+        max = Math.max(max, value);
+    }
+
+    // Сливает в текущий дайджест центроиды другого дайджеста
+    public void merge(TDigest other) {
+        for (int i = 0; i < other.size; ++i) {
+            add(other.means[i], other.counts[i]);
+        }
+        min = Math.min(min, other.min);
+        max = Math.max(max, other.max);
+    }
+
+    public long getTotalCount() {
+        return totalCount;
+    }
+
+    // Оценка значения q-перцентиля, q из отрезка [0, 1]
+    public double quantile(double q) {
+        if (q < 0 || q > 1) {
+            throw new IllegalArgumentException("Quantile must be in [0, 1]: " + q);
+        }
+        compress();
+
+        if (size == 0) {
+            return Double.NaN;
+        }
+        if (size == 1) {
+            return means[0];
+        }
+
+        double index = q * totalCount;
+
+        // левый хвост: между минимумом и серединой первого центроида
+        double firstMiddle = counts[0] / 2.0;
+        if (index < firstMiddle) {
+            return interpolate(min, means[0], index / firstMiddle);
+        }
+
+        double cumulative = 0;
+        for (int i = 0; i < size - 1; ++i) {
+            double left = cumulative + counts[i] / 2.0;
+            double right = cumulative + counts[i] + counts[i + 1] / 2.0;
+            if (index <= right) {
+                return interpolate(means[i], means[i + 1], (index - left) / (right - left));
+            }
+            cumulative += counts[i];
+        }
+
+        // правый хвост: между серединой последнего центроида и максимумом
+        double lastMiddle = totalCount - counts[size - 1] / 2.0;
+        double tail = totalCount - lastMiddle;
+        return interpolate(means[size - 1], max, tail == 0 ? 0 : (index - lastMiddle) / tail);
+    }
+
+    private static double interpolate(double from, double to, double fraction) {
+        return from + (to - from) * fraction;
+    }
+
+    // Сортирует центроиды и сливает соседние, пока их вес не превышает допустимый для данного перцентиля
+    // (центроиды на хвостах распределения остаются маленькими, в середине -- большими).
+    private void compress() {
+        if (compressedSize == size) {
+            return;
+        }
+
+        sortCentroids();
+
+        int last = 0;
+        long soFar = 0;
+        for (int i = 1; i < size; ++i) {
+            long proposed = counts[last] + counts[i];
+            double q0 = (double) soFar / totalCount;
+            double q2 = (double) (soFar + proposed) / totalCount;
+            double limit = 4.0 * totalCount * Math.min(q0 * (1 - q0), q2 * (1 - q2)) / compression;
+
+            if (proposed <= limit) {
+                means[last] += (means[i] - means[last]) * counts[i] / proposed;
+                counts[last] = proposed;
+            } else {
+                soFar += counts[last];
+                ++last;
+                means[last] = means[i];
+                counts[last] = counts[i];
+            }
+        }
+
+        size = size == 0 ? 0 : last + 1;
+        compressedSize = size;
+    }
+
+    private void sortCentroids() {
+        Integer[] order = new Integer[size];
+        for (int i = 0; i < size; ++i) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Double.compare(means[a], means[b]));
+
+        double[] sortedMeans = new double[means.length];
+        long[] sortedCounts = new long[counts.length];
+        for (int i = 0; i < size; ++i) {
+            sortedMeans[i] = means[order[i]];
+            sortedCounts[i] = counts[order[i]];
+        }
+        means = sortedMeans;
+        counts = sortedCounts;
+    }
+
+    @Override
+    public void write(DataOutput out) throws IOException {
+        compress();
+
+        WritableUtils.writeVInt(out, size);
+        if (size > 0) {
+            out.writeDouble(min);
+            out.writeDouble(max);
+        }
+        for (int i = 0; i < size; ++i) {
+            out.writeDouble(means[i]);
+            WritableUtils.writeVLong(out, counts[i]);
+        }
+    }
+
+    @Override
+    public void readFields(DataInput in) throws IOException {
+        clear();
+
+        int newSize = WritableUtils.readVInt(in);
+        if (means.length < newSize) {
+            means = new double[newSize];
+            counts = new long[newSize];
+        }
+        if (newSize > 0) {
+            min = in.readDouble();
+            max = in.readDouble();
+        }
+        for (int i = 0; i < newSize; ++i) {
+            means[i] = in.readDouble();
+            counts[i] = WritableUtils.readVLong(in);
+            totalCount += counts[i];
+        }
+        size = newSize;
+        compressedSize = newSize;
+    }
+}